@@ -0,0 +1,44 @@
+
+package polyfromimagecombinedspring;
+
+/**
+ * A graph whose nodes are the int indices 0 up to nodeCount(), each with a
+ * position. This is what path finding works on, so it can run over a graph
+ * that is fully built (CsrGraph) or one that works out its edges only when
+ * they are asked for (LazyVisibilityGraph).
+ */
+public interface AdjacencyGraph {
+
+    /**
+     * The number of nodes in the graph.
+     * @return
+     */
+    int nodeCount();
+
+    double x(int node);
+
+    double y(int node);
+
+    /**
+     * The number of edges leaving the given node.
+     * @param node
+     * @return
+     */
+    int degree(int node);
+
+    /**
+     * The k'th neighbour of the given node.
+     * @param node
+     * @param k From 0 up to degree(node)
+     * @return
+     */
+    int neighbour(int node, int k);
+
+    /**
+     * The weight of the edge to the k'th neighbour of the given node.
+     * @param node
+     * @param k From 0 up to degree(node)
+     * @return
+     */
+    double weight(int node, int k);
+}
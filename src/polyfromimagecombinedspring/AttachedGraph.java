@@ -0,0 +1,172 @@
+
+package polyfromimagecombinedspring;
+
+import java.util.Arrays;
+
+/**
+ * A graph made of another graph plus some extra points, such as the start
+ * and end points of path queries. The base graph is not changed: its nodes
+ * keep their indices, and the extra points come after them, so point i is
+ * node base.nodeCount() + i. Each extra point is joined to every node (and
+ * every other extra point) it can see, using the same collision test as
+ * polygonsToGraph.
+ *
+ * This is how temporary points, like the start and goal of a query, are
+ * put into a built graph: the overlay is made for the query and dropped
+ * afterwards, and the base graph never has to be rebuilt or cleaned up.
+ */
+public class AttachedGraph implements AdjacencyGraph {
+
+    private final AdjacencyGraph base;
+    private final int baseCount;
+    private final double[] pointX, pointY;
+    // the neighbours of each extra point.
+    private final int[][] pointNeighbours;
+    // extraStart[b] to extraStart[b + 1] are the extra points that base node b can see.
+    private final int[] extraStart;
+    private final int[] extras;
+
+    /**
+     * Attach the given points to a graph, testing each point against every
+     * node of the graph.
+     * @param base The graph to attach the points to
+     * @param obstacles The polygon edges the base graph was built around
+     * @param points The points, stored as x, y for each point
+     */
+    public AttachedGraph(AdjacencyGraph base, SegmentIndex obstacles, double[] points) {
+        this(base, obstacles, points, null, 0);
+    }
+
+    /**
+     * Attach the given points to a graph, only testing each point against
+     * the nodes within the given radius of it. This skips most of the
+     * collision tests on a big map, but it is only an approximation: a
+     * point is only joined to the nodes near it, so a path can come out
+     * longer than with every node tested when the best first step is to a
+     * node further away, and the goal can look unreachable when the nodes
+     * near a point are cut off from it even though a node further away
+     * isn't. If a point can't see any node within the radius, it is tested
+     * against every node instead. Callers that need the shortest path, or
+     * a true answer to whether there is one, should attach with every node
+     * tested, as PathPlanner does when the search with the radius fails.
+     * @param base The graph to attach the points to
+     * @param obstacles The polygon edges the base graph was built around
+     * @param points The points, stored as x, y for each point
+     * @param nodeGrid A grid over the nodes of the base graph, or null to test every node
+     * @param radius How far from a point to look for nodes, or 0 to test every node
+     */
+    public AttachedGraph(AdjacencyGraph base, SegmentIndex obstacles, double[] points, NodeGrid nodeGrid, double radius) {
+        this.base = base;
+        baseCount = base.nodeCount();
+        int m = points.length / 2;
+        pointX = new double[m];
+        pointY = new double[m];
+        for (int i = 0; i < m; i++) {
+            pointX[i] = points[i * 2];
+            pointY[i] = points[i * 2 + 1];
+        }
+
+        pointNeighbours = new int[m][];
+        int[] counts = new int[baseCount + 1];
+        for (int i = 0; i < m; i++) {
+            int[] visible = new int[16];
+            int used = 0;
+            int[] candidates = null;
+            if (nodeGrid != null && radius > 0)
+                candidates = nodeGrid.nodesWithin(pointX[i], pointY[i], radius);
+            for (int pass = 0; pass < 2 && used == 0; pass++) {
+                if (pass == 1)
+                    candidates = null;  // nothing near was visible, so try every node.
+                int numCandidates = (candidates == null) ? baseCount : candidates.length;
+                for (int c = 0; c < numCandidates; c++) {
+                    int j = (candidates == null) ? c : candidates[c];
+                    if (!obstacles.lineCollides(x(j), y(j), pointX[i], pointY[i])) {
+                        if (used == visible.length)
+                            visible = Arrays.copyOf(visible, used * 2);
+                        visible[used++] = j;
+                    }
+                }
+                if (candidates == null)
+                    break;
+            }
+            // the other points are always tested.
+            for (int j = baseCount; j < baseCount + m; j++) {
+                if (j == baseCount + i)
+                    continue;
+                if (!obstacles.lineCollides(x(j), y(j), pointX[i], pointY[i])) {
+                    if (used == visible.length)
+                        visible = Arrays.copyOf(visible, used * 2);
+                    visible[used++] = j;
+                }
+            }
+            pointNeighbours[i] = Arrays.copyOf(visible, used);
+            for (int j : pointNeighbours[i]) {
+                if (j < baseCount)
+                    counts[j + 1]++;
+            }
+        }
+
+        for (int b = 0; b < baseCount; b++)
+            counts[b + 1] += counts[b];
+        extraStart = counts.clone();
+        extras = new int[counts[baseCount]];
+        for (int i = 0; i < m; i++) {
+            for (int j : pointNeighbours[i]) {
+                if (j < baseCount)
+                    extras[counts[j]++] = baseCount + i;
+            }
+        }
+    }
+
+    /**
+     * The node index of the i'th extra point.
+     * @param i
+     * @return
+     */
+    public int pointNode(int i) {
+        return baseCount + i;
+    }
+
+    @Override
+    public int nodeCount() {
+        return baseCount + pointX.length;
+    }
+
+    @Override
+    public double x(int node) {
+        return (node < baseCount) ? base.x(node) : pointX[node - baseCount];
+    }
+
+    @Override
+    public double y(int node) {
+        return (node < baseCount) ? base.y(node) : pointY[node - baseCount];
+    }
+
+    @Override
+    public int degree(int node) {
+        if (node < baseCount)
+            return base.degree(node) + (extraStart[node + 1] - extraStart[node]);
+        return pointNeighbours[node - baseCount].length;
+    }
+
+    @Override
+    public int neighbour(int node, int k) {
+        if (node < baseCount) {
+            int baseDegree = base.degree(node);
+            if (k < baseDegree)
+                return base.neighbour(node, k);
+            return extras[extraStart[node] + (k - baseDegree)];
+        }
+        return pointNeighbours[node - baseCount][k];
+    }
+
+    @Override
+    public double weight(int node, int k) {
+        if (node < baseCount && k < base.degree(node))
+            return base.weight(node, k);
+        int other = neighbour(node, k);
+        double diffX = x(other) - x(node);
+        double diffY = y(other) - y(node);
+        return Math.sqrt((diffX * diffX) + (diffY * diffY));
+    }
+}
@@ -0,0 +1,265 @@
+
+package polyfromimagecombinedspring;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Processes many images in one JVM, a few at a time. Each worker thread
+ * has its own Pipeline, and every image gets the same output files it
+ * would get from running main on it alone.
+ *
+ * Before an image is started, its memory use is guessed from its size
+ * (read from the file header, without decoding it), and taken out of a
+ * memory budget with a semaphore of megabytes. An image waits until
+ * enough of the budget is free, so a few big images don't run at once
+ * and run out of heap. An image bigger than the whole budget runs on its
+ * own. When everything is done, a summary of every image and of the
+ * throughput is written to a CSV file.
+ *
+ * The output files go to one OutputWriter shared with the rest of the
+ * run, so a worker starts its next image while the last one's files are
+ * still being written. An image's budget is given back when its files
+ * are handed over. Only the writer's queue of files can then be waiting
+ * outside the budget, and when it is full the workers write the files
+ * themselves.
+ */
+public class BatchRunner {
+
+    private static final String[] IMAGE_EXTENSIONS = { "png", "jpg", "jpeg", "bmp", "gif" };
+    // rough heap bytes per pixel: the decoded image, its two output copies,
+    // the labels and masks, and the pixels and texture features of each mode.
+    private static final int BYTES_PER_PIXEL = 20;
+    private static final int PROGRESS_IMAGE_BYTES_PER_PIXEL = 20;
+    private static final int TEXTURE_BYTES_PER_PIXEL = 50;
+    private static final int COLOR_BYTES_PER_PIXEL = 5;
+    private static final long MEGABYTE = 1024 * 1024;
+
+    // what happened to one image.
+    private static class ImageSummary {
+        File input;
+        int width, height;
+        long millis;
+        // only the counts are kept, so the images and graphs can be freed
+        // as soon as each one is written.
+        boolean ok;
+        int numNodes, numEdges;
+    }
+
+    private final PipelineConfig config;
+    private final PolyFromImageCombinedSpring.RunOptions options;
+    private final int numWorkers;
+    private final int memoryBudgetMb;
+    private final Semaphore memory;
+    private final ThreadLocal<Pipeline> pipelines;
+    private final OutputWriter writer;
+
+    /**
+     * Make a batch runner.
+     * @param config The pipeline settings for every image. Its threads are
+     *               split between the workers, and verbose is turned off.
+     * @param options What to write for each image
+     * @param numWorkers The number of images to process at once, or 0 for one per processor
+     * @param memoryBudgetMb How many megabytes of images can be in memory at once, or 0 for 3/4 of the heap
+     * @param writer The writer to write every image's files with
+     */
+    public BatchRunner(PipelineConfig config, PolyFromImageCombinedSpring.RunOptions options, int numWorkers,
+            long memoryBudgetMb, OutputWriter writer) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        this.numWorkers = (numWorkers > 0) ? numWorkers : processors;
+        if (memoryBudgetMb <= 0)
+            memoryBudgetMb = (Runtime.getRuntime().maxMemory() / MEGABYTE) * 3 / 4;
+        this.memoryBudgetMb = (int)Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudgetMb));
+        this.memory = new Semaphore(this.memoryBudgetMb, true);
+        this.options = options;
+        this.config = config;
+        this.writer = writer;
+        config.numThreads = Math.max(1, processors / this.numWorkers);
+        config.verbose = false;
+        config.validate();
+        pipelines = ThreadLocal.withInitial(() -> new Pipeline(config));
+    }
+
+    /**
+     * Find the images to process.
+     * @param directoryOrGlob A directory, in which case every image file in it
+     *                        is used, or a glob such as maps/snapshot_*.png
+     * @return The image files, sorted by name.
+     * @throws IOException If the directory can't be listed
+     */
+    public static ArrayList<File> listInputs(String directoryOrGlob) throws IOException {
+        File directory = new File(directoryOrGlob);
+        PathMatcher matcher = null;
+        if (!directory.isDirectory()) {
+            // the glob is matched against the file names in its directory.
+            directory = directory.getAbsoluteFile().getParentFile();
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + new File(directoryOrGlob).getName());
+        }
+        File[] files = (directory == null) ? null : directory.listFiles();
+        if (files == null)
+            throw new IOException("Can't list the images in " + directoryOrGlob);
+        Arrays.sort(files);
+        ArrayList<File> inputs = new ArrayList<>();
+        for (File file : files) {
+            if (!file.isFile())
+                continue;
+            if (matcher != null ? matcher.matches(Paths.get(file.getName())) : isImageFile(file))
+                inputs.add(file);
+        }
+        return inputs;
+    }
+
+    private static boolean isImageFile(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (name.endsWith("." + extension))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Process every image, then write the summary.
+     * @param inputs The image files
+     * @param summaryCsv Where to write the summary
+     * @throws IOException If the summary can't be written
+     * @throws InterruptedException
+     */
+    public void run(ArrayList<File> inputs, File summaryCsv) throws IOException, InterruptedException {
+        System.out.println("Processing " + inputs.size() + " images with " + numWorkers + " workers and "
+                + memoryBudgetMb + " MB for images...");
+        long startTime = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(numWorkers);
+        ArrayList<ImageSummary> summaries = new ArrayList<>();
+        try {
+            ArrayList<Future<ImageSummary>> futures = new ArrayList<>();
+            for (File input : inputs)
+                futures.add(pool.submit(() -> processOne(input)));
+            int done = 0;
+            for (Future<ImageSummary> future : futures) {
+                ImageSummary summary = future.get();
+                summaries.add(summary);
+                done++;
+                System.out.println("[" + done + "/" + inputs.size() + "] " + summary.input.getName() + ": "
+                        + (!summary.ok ? "failed" : (summary.millis + " ms")));
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error processing the batch", e);
+        } finally {
+            pool.shutdown();
+        }
+        long totalMillis = System.currentTimeMillis() - startTime;
+        writeSummary(summaries, totalMillis, summaryCsv);
+        System.out.println("Done " + inputs.size() + " images in " + totalMillis + " ms. Summary in " + summaryCsv);
+    }
+
+    private ImageSummary processOne(File input) throws InterruptedException {
+        ImageSummary summary = new ImageSummary();
+        summary.input = input;
+        int[] size = imageSize(input);
+        if (size == null) {
+            System.err.println("Could not read the size of " + input);
+            return summary;
+        }
+        summary.width = size[0];
+        summary.height = size[1];
+        int permits = memoryNeededMb(summary.width, summary.height);
+        memory.acquire(permits);
+        try {
+            long startTime = System.currentTimeMillis();
+            Pipeline.Result result = PolyFromImageCombinedSpring.processImage(input, pipelines.get(), options, writer);
+            summary.millis = System.currentTimeMillis() - startTime;
+            if (result == null)
+                return summary;
+            summary.numNodes = result.graph.nodes.size();
+            summary.numEdges = result.graph.edges.size();
+            summary.ok = true;
+        } catch (RuntimeException e) {
+            System.err.println("Error processing " + input + ": " + e);
+        } finally {
+            memory.release(permits);
+        }
+        return summary;
+    }
+
+    /**
+     * A guess at the megabytes of heap an image of this size needs.
+     */
+    private int memoryNeededMb(int width, int height) {
+        long bytesPerPixel = BYTES_PER_PIXEL;
+        if (options.showProgressImages)
+            bytesPerPixel += PROGRESS_IMAGE_BYTES_PER_PIXEL;
+        if (config.method == PipelineConfig.Method.TEXTURE)
+            bytesPerPixel += TEXTURE_BYTES_PER_PIXEL;
+        else if (config.method == PipelineConfig.Method.COLOR)
+            bytesPerPixel += COLOR_BYTES_PER_PIXEL;
+        long megabytes = ((long)width * height * bytesPerPixel + MEGABYTE - 1) / MEGABYTE;
+        return (int)Math.max(1, Math.min(memoryBudgetMb, megabytes));
+    }
+
+    /**
+     * The width and height of an image, read from its header.
+     */
+    private static int[] imageSize(File file) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null)
+                return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext())
+                return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeSummary(ArrayList<ImageSummary> summaries, long totalMillis, File summaryCsv) throws IOException {
+        int succeeded = 0;
+        long totalPixels = 0;
+        try (PrintWriter out = new PrintWriter(summaryCsv)) {
+            out.println("Image,Width,Height,Nodes,Edges,Time (ms),Status");
+            for (ImageSummary summary : summaries) {
+                boolean ok = summary.ok;
+                out.println(summary.input.getName() + "," + summary.width + "," + summary.height + ","
+                        + (ok ? summary.numNodes : "") + ","
+                        + (ok ? summary.numEdges : "") + ","
+                        + (ok ? summary.millis : "") + "," + (ok ? "ok" : "failed"));
+                if (ok) {
+                    succeeded++;
+                    totalPixels += (long)summary.width * summary.height;
+                }
+            }
+            double seconds = Math.max(totalMillis, 1) / 1000.0;
+            out.println();
+            out.println("Images," + summaries.size());
+            out.println("Images Failed," + (summaries.size() - succeeded));
+            out.println("Workers," + numWorkers);
+            out.println("Memory Budget (MB)," + memoryBudgetMb);
+            out.println("Total Time (ms)," + totalMillis);
+            out.println("Images Per Second," + String.format(Locale.ROOT, "%.3f", succeeded / seconds));
+            out.println("Megapixels Per Second," + String.format(Locale.ROOT, "%.3f", (totalPixels / 1e6) / seconds));
+        }
+    }
+}
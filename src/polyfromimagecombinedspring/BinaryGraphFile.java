@@ -0,0 +1,210 @@
+
+package polyfromimagecombinedspring;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A compact binary file for a graph, laid out so a reader can map the file
+ * into memory and use it as it is, with nothing to parse. Everything is
+ * little-endian, and each section starts on a multiple of its element size:
+ *
+ *   header     8 ints: magic, version, node count, directed edge count, 4 reserved
+ *   coords     node count * 2 doubles (x, y of each node)
+ *   ids        node count ints (the node ids used in the JSON graph)
+ *   offsets    node count + 1 ints (CSR: where each node's edges start)
+ *   neighbours directed edge count ints
+ *   weights    directed edge count floats
+ *
+ * Every undirected edge is stored once in each direction, as in CsrGraph.
+ * A mapped buffer is indexed with ints, so a file can be at most 2 GB.
+ */
+public class BinaryGraphFile implements AdjacencyGraph {
+
+    public static final int MAGIC = 0x56474231;    // "VGB1"
+    public static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private final DoubleBuffer coords;
+    private final IntBuffer ids;
+    private final IntBuffer offsets;
+    private final IntBuffer neighbours;
+    private final FloatBuffer weights;
+    private final int nodeCount;
+
+    private BinaryGraphFile(MappedByteBuffer buffer, int nodeCount, int edgeCount) {
+        this.nodeCount = nodeCount;
+        int position = HEADER_BYTES;
+        coords = section(buffer, position, nodeCount * 16).asDoubleBuffer();
+        position += nodeCount * 16;
+        ids = section(buffer, position, nodeCount * 4).asIntBuffer();
+        position += nodeCount * 4;
+        offsets = section(buffer, position, (nodeCount + 1) * 4).asIntBuffer();
+        position += (nodeCount + 1) * 4;
+        neighbours = section(buffer, position, edgeCount * 4).asIntBuffer();
+        position += edgeCount * 4;
+        weights = section(buffer, position, edgeCount * 4).asFloatBuffer();
+    }
+
+    private static ByteBuffer section(ByteBuffer buffer, int position, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position);
+        slice.limit(position + length);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Write a graph to a binary file.
+     * @param graph The graph to write
+     * @param file The file to write
+     * @throws IOException
+     */
+    public static void write(SimpleGraph graph, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(graph, channel);
+        }
+    }
+
+    /**
+     * Write a graph in the binary format to a channel, such as a socket.
+     * The channel is not closed.
+     * @param graph The graph to write
+     * @param channel Where to write it
+     * @throws IOException
+     */
+    public static void write(SimpleGraph graph, WritableByteChannel channel) throws IOException {
+        CsrGraph csr = CsrGraph.fromSimpleGraph(graph);
+        int n = csr.nodeCount();
+        int m = csr.edgeCount() * 2;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(m);
+        buffer.putInt(0).putInt(0).putInt(0).putInt(0);
+        for (int i = 0; i < n; i++) {
+            ensureRoom(channel, buffer, 16);
+            buffer.putDouble(csr.x(i)).putDouble(csr.y(i));
+        }
+        for (int i = 0; i < n; i++) {
+            ensureRoom(channel, buffer, 4);
+            buffer.putInt(graph.nodes.get(i).id);
+        }
+        int offset = 0;
+        for (int i = 0; i <= n; i++) {
+            ensureRoom(channel, buffer, 4);
+            buffer.putInt(offset);
+            if (i < n)
+                offset += csr.degree(i);
+        }
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < csr.degree(i); k++) {
+                ensureRoom(channel, buffer, 4);
+                buffer.putInt(csr.neighbour(i, k));
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < csr.degree(i); k++) {
+                ensureRoom(channel, buffer, 4);
+                buffer.putFloat((float)csr.weight(i, k));
+            }
+        }
+        drain(channel, buffer);
+    }
+
+    private static void ensureRoom(WritableByteChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes)
+            drain(channel, buffer);
+    }
+
+    private static void drain(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Map a binary graph file into memory. The graph reads straight from
+     * the mapped file, so opening it costs the same however big it is.
+     * @param file The file to read
+     * @return The graph.
+     * @throws IOException If the file can't be read or is not a binary graph file
+     */
+    public static BinaryGraphFile open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE)
+                throw new IOException(file + " is not a binary graph file");
+            // the mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC)
+                throw new IOException(file + " is not a binary graph file");
+            int version = buffer.getInt(4);
+            if (version != VERSION)
+                throw new IOException("Unsupported binary graph version " + version + " in " + file);
+            int n = buffer.getInt(8);
+            int m = buffer.getInt(12);
+            long expected = HEADER_BYTES + (n * 16L) + (n * 4L) + ((n + 1) * 4L) + (m * 4L) + (m * 4L);
+            if (n < 0 || m < 0 || expected != size)
+                throw new IOException(file + " has the wrong size for " + n + " nodes and " + m + " edges");
+            return new BinaryGraphFile(buffer, n, m);
+        }
+    }
+
+    /**
+     * The id the node has in the JSON graph.
+     * @param node
+     * @return
+     */
+    public int id(int node) {
+        return ids.get(node);
+    }
+
+    /**
+     * The number of undirected edges in the graph.
+     * @return
+     */
+    public int edgeCount() {
+        return neighbours.capacity() / 2;
+    }
+
+    @Override
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public double x(int node) {
+        return coords.get(node * 2);
+    }
+
+    @Override
+    public double y(int node) {
+        return coords.get(node * 2 + 1);
+    }
+
+    @Override
+    public int degree(int node) {
+        return offsets.get(node + 1) - offsets.get(node);
+    }
+
+    @Override
+    public int neighbour(int node, int k) {
+        return neighbours.get(offsets.get(node) + k);
+    }
+
+    @Override
+    public double weight(int node, int k) {
+        return weights.get(offsets.get(node) + k);
+    }
+}
@@ -0,0 +1,107 @@
+
+package polyfromimagecombinedspring;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+/**
+ * A round-trip check of BinaryGraphFile, kept out of the file format class
+ * itself: random graphs are written and read back, and every node and edge
+ * is compared with the graph that was written.
+ */
+public class BinaryGraphFileCheck {
+
+    /**
+     * Check that a graph comes back out of a binary file as it went in:
+     * write a random SimpleGraph, map the file, and compare the node
+     * coordinates, ids, neighbours and weights. Run it with
+     *   java polyfromimagecombinedspring.BinaryGraphFileCheck [nodes] [seed]
+     * It exits with status 1 if anything differs.
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int nodes = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+        long seed = (args.length > 1) ? Long.parseLong(args[1]) : 1;
+        int mismatches = 0;
+        // once with the ids in order, and once as a graph whose nodes were
+        // taken out without renumbering.
+        for (boolean renumbered : new boolean[] { true, false }) {
+            SimpleGraph graph = randomGraph(nodes, new Random(seed), renumbered);
+            File file = File.createTempFile("graph", ".bin");
+            try {
+                BinaryGraphFile.write(graph, file);
+                mismatches += compare(graph, BinaryGraphFile.open(file));
+            } finally {
+                file.delete();
+            }
+        }
+        System.err.println((mismatches == 0) ? "The binary graph matches the SimpleGraph." :
+                mismatches + " differences between the binary graph and the SimpleGraph.");
+        if (mismatches != 0)
+            System.exit(1);
+    }
+
+    private static SimpleGraph randomGraph(int nodes, Random random, boolean renumbered) {
+        SimpleGraph graph = new SimpleGraph();
+        for (int i = 0; i < nodes; i++)
+            graph.addNode(random.nextDouble() * 1000, random.nextDouble() * 1000);
+        for (int i = 0; i < nodes * 4; i++) {
+            SimpleNode p0 = graph.nodes.get(random.nextInt(nodes));
+            SimpleNode p1 = graph.nodes.get(random.nextInt(nodes));
+            if (p0 != p1)
+                graph.edges.add(new SimpleEdge(p0, p1, p0.distanceTo(p1)));
+        }
+        if (!renumbered) {
+            for (SimpleNode node : graph.nodes)
+                node.id += nodes;
+        }
+        return graph;
+    }
+
+    private static int compare(SimpleGraph graph, BinaryGraphFile file) {
+        int n = graph.nodes.size();
+        if (file.nodeCount() != n || file.edgeCount() != graph.edges.size()) {
+            System.err.println("The file has " + file.nodeCount() + " nodes and " + file.edgeCount() +
+                    " edges, not " + n + " and " + graph.edges.size());
+            return 1;
+        }
+        int mismatches = 0;
+        IdentityHashMap<SimpleNode, Integer> indexOf = new IdentityHashMap<>(n);
+        for (int i = 0; i < n; i++)
+            indexOf.put(graph.nodes.get(i), i);
+        // the neighbour and weight of every edge end, as each node should see them.
+        ArrayList<ArrayList<String>> expected = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            expected.add(new ArrayList<>());
+        for (SimpleEdge edge : graph.edges) {
+            int a = indexOf.get(edge.p0);
+            int b = indexOf.get(edge.p1);
+            float weight = (float)edge.getWeight();
+            expected.get(a).add(b + " " + weight);
+            expected.get(b).add(a + " " + weight);
+        }
+        for (int i = 0; i < n; i++) {
+            SimpleNode node = graph.nodes.get(i);
+            if (file.x(i) != node.x || file.y(i) != node.y || file.id(i) != node.id) {
+                System.err.println("Node " + i + " is (" + file.x(i) + ", " + file.y(i) + ") id " + file.id(i) +
+                        ", not (" + node.x + ", " + node.y + ") id " + node.id);
+                mismatches++;
+            }
+            ArrayList<String> found = new ArrayList<>();
+            for (int k = 0; k < file.degree(i); k++)
+                found.add(file.neighbour(i, k) + " " + (float)file.weight(i, k));
+            Collections.sort(found);
+            Collections.sort(expected.get(i));
+            if (!found.equals(expected.get(i))) {
+                System.err.println("Node " + i + " has the edges " + found + ", not " + expected.get(i));
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+}
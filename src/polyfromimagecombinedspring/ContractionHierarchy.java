@@ -0,0 +1,510 @@
+
+package polyfromimagecombinedspring;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * A contraction hierarchy over an undirected graph, for answering many
+ * shortest path queries on a map that doesn't change.
+ *
+ * Building it removes (contracts) the nodes one at a time, least important
+ * first, and adds a shortcut edge between two neighbours of the removed
+ * node whenever the path through it was their only shortest path. A node's
+ * importance is its edge difference (shortcuts added minus edges removed)
+ * plus the number of neighbours already contracted. Every shortest path
+ * then goes up the ranks and back down, so a query only searches the
+ * upward edges from both ends, which is a tiny part of the graph.
+ *
+ * Once built, the hierarchy is never modified and can be shared by many
+ * threads. It can be saved next to the graph output and loaded back.
+ */
+public class ContractionHierarchy {
+
+    private static final int FILE_MAGIC = 0x43484731;  // "CHG1"
+    private static final int FILE_VERSION = 1;
+    // a witness search gives up (and a shortcut is added) after settling this many nodes.
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+
+    private static final ThreadLocal<PathFinder.SearchState[]> STATES = ThreadLocal.withInitial(
+            () -> new PathFinder.SearchState[] { new PathFinder.SearchState(), new PathFinder.SearchState() });
+
+    // the node positions, stored as x, y for each node.
+    private final double[] coords;
+    // the order nodes were contracted in; higher ranks were contracted later.
+    private final int[] rank;
+    // upStart[v] to upStart[v + 1] are the edges from v to higher ranked nodes.
+    private final int[] upStart;
+    private final int[] upTarget;
+    private final double[] upWeight;
+    // the node a shortcut skips over, or -1 for an edge of the original graph.
+    private final int[] upMiddle;
+
+    private ContractionHierarchy(double[] coords, int[] rank, int[] upStart, int[] upTarget, double[] upWeight, int[] upMiddle) {
+        this.coords = coords;
+        this.rank = rank;
+        this.upStart = upStart;
+        this.upTarget = upTarget;
+        this.upWeight = upWeight;
+        this.upMiddle = upMiddle;
+    }
+
+    /**
+     * Build a contraction hierarchy over a graph. The graph is taken to be
+     * undirected, as the visibility graphs are.
+     * @param graph The graph to build the hierarchy over
+     * @return The contraction hierarchy.
+     */
+    public static ContractionHierarchy build(AdjacencyGraph graph) {
+        return new Builder(graph).build();
+    }
+
+    /**
+     * The number of nodes in the hierarchy.
+     * @return
+     */
+    public int nodeCount() {
+        return rank.length;
+    }
+
+    /**
+     * The number of upward edges, counting both original edges and shortcuts.
+     * @return
+     */
+    public int edgeCount() {
+        return upTarget.length;
+    }
+
+    public double x(int node) {
+        return coords[node * 2];
+    }
+
+    public double y(int node) {
+        return coords[node * 2 + 1];
+    }
+
+    /**
+     * The length of the shortest path between two nodes.
+     * @param start
+     * @param goal
+     * @return The path length, or infinity if the goal can't be reached.
+     */
+    public double distance(int start, int goal) {
+        PathFinder.SearchState[] states = STATES.get();
+        int meet = search(start, goal, states);
+        if (meet < 0)
+            return Double.POSITIVE_INFINITY;
+        return states[0].cost[meet] + states[1].cost[meet];
+    }
+
+    /**
+     * The shortest path between two nodes, with every shortcut unpacked
+     * back into the edges of the original graph.
+     * @param start
+     * @param goal
+     * @return The nodes on the path, from start to goal, or null if the goal can't be reached.
+     */
+    public int[] path(int start, int goal) {
+        PathFinder.SearchState[] states = STATES.get();
+        int meet = search(start, goal, states);
+        if (meet < 0)
+            return null;
+        int[] up = states[0].pathTo(meet);
+        int[] down = states[1].pathTo(meet);
+        PathBuffer path = new PathBuffer();
+        path.add(start);
+        for (int i = 1; i < up.length; i++)
+            unpack(up[i - 1], up[i], path);
+        for (int i = down.length - 1; i > 0; i--)
+            unpack(down[i], down[i - 1], path);
+        return Arrays.copyOf(path.nodes, path.size);
+    }
+
+    /**
+     * Search upwards from both ends at once, stopping when neither side
+     * can find anything shorter than the best meeting point so far. The
+     * visibility graphs are dense, so the upward edges of a node reach a
+     * lot of the graph; a node is also skipped once its cost plus the
+     * straight line distance to the other end is no better than the best
+     * path found, which cuts the search down to the area near the path.
+     * @return The meeting node of the shortest path, or -1 if there is no path.
+     */
+    private int search(int start, int goal, PathFinder.SearchState[] states) {
+        PathFinder.SearchState forward = states[0];
+        PathFinder.SearchState backward = states[1];
+        forward.reset(rank.length);
+        backward.reset(rank.length);
+        forward.relax(start, -1, 0, 0);
+        backward.relax(goal, -1, 0, 0);
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        if (start == goal)
+            return start;
+        while (true) {
+            double forwardMin = forward.heapIsEmpty() ? Double.POSITIVE_INFINITY : forward.minKey();
+            double backwardMin = backward.heapIsEmpty() ? Double.POSITIVE_INFINITY : backward.minKey();
+            if (Math.min(forwardMin, backwardMin) >= best)
+                break;
+            PathFinder.SearchState side = (forwardMin <= backwardMin) ? forward : backward;
+            PathFinder.SearchState other = (side == forward) ? backward : forward;
+            int end = (side == forward) ? goal : start;
+            int node = side.pop();
+            double nodeCost = side.cost[node];
+            if (other.isSeen(node) && nodeCost + other.cost[node] < best) {
+                best = nodeCost + other.cost[node];
+                meet = node;
+            }
+            if (nodeCost + lowerBound(node, end) >= best)
+                continue;
+            for (int e = upStart[node]; e < upStart[node + 1]; e++) {
+                int next = upTarget[e];
+                if (side.isClosed(next))
+                    continue;
+                double newCost = nodeCost + upWeight[e];
+                if (newCost + lowerBound(next, end) >= best)
+                    continue;
+                if (!side.isSeen(next) || newCost < side.cost[next]) {
+                    side.relax(next, node, newCost, newCost);
+                    if (other.isSeen(next) && newCost + other.cost[next] < best) {
+                        best = newCost + other.cost[next];
+                        meet = next;
+                    }
+                }
+            }
+        }
+        return meet;
+    }
+
+    /**
+     * The straight line distance between two nodes, shrunk a little since
+     * float edge weights can be slightly shorter than it. No path between
+     * them can be shorter than this.
+     */
+    private double lowerBound(int a, int b) {
+        double diffX = coords[b * 2] - coords[a * 2];
+        double diffY = coords[b * 2 + 1] - coords[a * 2 + 1];
+        return Math.sqrt((diffX * diffX) + (diffY * diffY)) * (1 - 1e-6);
+    }
+
+    /**
+     * Add the original graph nodes along the edge from a to b to the end of
+     * the path, leaving out a (which is already there).
+     */
+    private void unpack(int a, int b, PathBuffer path) {
+        // a stack of edges still to unpack, as pairs of nodes.
+        int[] stack = new int[32];
+        int top = 0;
+        stack[top++] = a;
+        stack[top++] = b;
+        while (top > 0) {
+            int to = stack[--top];
+            int from = stack[--top];
+            int middle = middleOf(from, to);
+            if (middle < 0) {
+                path.add(to);
+            } else {
+                if (top + 4 > stack.length)
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                // push the second half first so the first half comes out first.
+                stack[top++] = middle;
+                stack[top++] = to;
+                stack[top++] = from;
+                stack[top++] = middle;
+            }
+        }
+    }
+
+    private int middleOf(int a, int b) {
+        int low = (rank[a] < rank[b]) ? a : b;
+        int high = (low == a) ? b : a;
+        int middle = -2;
+        double bestWeight = Double.POSITIVE_INFINITY;
+        for (int e = upStart[low]; e < upStart[low + 1]; e++) {
+            if (upTarget[e] == high && upWeight[e] < bestWeight) {
+                bestWeight = upWeight[e];
+                middle = upMiddle[e];
+            }
+        }
+        if (middle == -2)
+            throw new IllegalStateException("No edge between " + a + " and " + b);
+        return middle;
+    }
+
+    /**
+     * Save the hierarchy to a file, so it can be loaded again without
+     * rebuilding it.
+     * @param file The file to write
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(rank.length);
+            out.writeInt(upTarget.length);
+            for (double c : coords)
+                out.writeDouble(c);
+            for (int r : rank)
+                out.writeInt(r);
+            for (int s : upStart)
+                out.writeInt(s);
+            for (int e = 0; e < upTarget.length; e++) {
+                out.writeInt(upTarget[e]);
+                out.writeDouble(upWeight[e]);
+                out.writeInt(upMiddle[e]);
+            }
+        }
+    }
+
+    /**
+     * Load a hierarchy written by save.
+     * @param file The file to read
+     * @return The contraction hierarchy.
+     * @throws IOException If the file can't be read or is not a saved hierarchy
+     */
+    public static ContractionHierarchy load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException(file + " is not a contraction hierarchy file");
+            int version = in.readInt();
+            if (version != FILE_VERSION)
+                throw new IOException("Unsupported contraction hierarchy version " + version + " in " + file);
+            int n = in.readInt();
+            int m = in.readInt();
+            double[] coords = new double[n * 2];
+            for (int i = 0; i < coords.length; i++)
+                coords[i] = in.readDouble();
+            int[] rank = new int[n];
+            for (int i = 0; i < n; i++)
+                rank[i] = in.readInt();
+            int[] upStart = new int[n + 1];
+            for (int i = 0; i <= n; i++)
+                upStart[i] = in.readInt();
+            int[] upTarget = new int[m];
+            double[] upWeight = new double[m];
+            int[] upMiddle = new int[m];
+            for (int e = 0; e < m; e++) {
+                upTarget[e] = in.readInt();
+                upWeight[e] = in.readDouble();
+                upMiddle[e] = in.readInt();
+            }
+            return new ContractionHierarchy(coords, rank, upStart, upTarget, upWeight, upMiddle);
+        }
+    }
+
+    // a growable list of the nodes on a path.
+    private static class PathBuffer {
+        int[] nodes = new int[16];
+        int size = 0;
+
+        void add(int node) {
+            if (size == nodes.length)
+                nodes = Arrays.copyOf(nodes, size * 2);
+            nodes[size++] = node;
+        }
+    }
+
+    /**
+     * The working state while the hierarchy is built: a growable edge list
+     * for each node, which gains the shortcuts as nodes are contracted.
+     */
+    private static class Builder {
+
+        private final int n;
+        private final double[] coords;
+        private int[][] adjNode;
+        private double[][] adjWeight;
+        private int[][] adjMiddle;
+        private final int[] adjSize;
+        private final boolean[] contracted;
+        private final int[] contractedNeighbours;
+        private final PathFinder.SearchState witness = new PathFinder.SearchState();
+
+        Builder(AdjacencyGraph graph) {
+            n = graph.nodeCount();
+            coords = new double[n * 2];
+            adjNode = new int[n][];
+            adjWeight = new double[n][];
+            adjMiddle = new int[n][];
+            adjSize = new int[n];
+            contracted = new boolean[n];
+            contractedNeighbours = new int[n];
+            for (int v = 0; v < n; v++) {
+                coords[v * 2] = graph.x(v);
+                coords[v * 2 + 1] = graph.y(v);
+                int degree = graph.degree(v);
+                adjNode[v] = new int[Math.max(4, degree)];
+                adjWeight[v] = new double[Math.max(4, degree)];
+                adjMiddle[v] = new int[Math.max(4, degree)];
+            }
+            for (int v = 0; v < n; v++) {
+                for (int k = 0; k < graph.degree(v); k++)
+                    addEdge(v, graph.neighbour(v, k), graph.weight(v, k), -1);
+            }
+        }
+
+        ContractionHierarchy build() {
+            PriorityQueue<Long> queue = new PriorityQueue<>();
+            for (int v = 0; v < n; v++)
+                queue.add(queueEntry(priority(v), v));
+
+            int[] rank = new int[n];
+            int nextRank = 0;
+            while (!queue.isEmpty()) {
+                int v = (int)(queue.poll() & 0xFFFFFFFFL);
+                if (contracted[v])
+                    continue;
+                // priorities go stale as neighbours are contracted, so check
+                // this one again before using it.
+                int current = priority(v);
+                if (!queue.isEmpty() && queueEntry(current, v) > queue.peek()) {
+                    queue.add(queueEntry(current, v));
+                    continue;
+                }
+                contract(v, true);
+                contracted[v] = true;
+                rank[v] = nextRank++;
+                for (int k = 0; k < adjSize[v]; k++)
+                    contractedNeighbours[adjNode[v][k]]++;
+            }
+
+            // keep each edge once, from its lower ranked end.
+            int[] upStart = new int[n + 1];
+            for (int v = 0; v < n; v++) {
+                for (int k = 0; k < adjSize[v]; k++) {
+                    if (rank[adjNode[v][k]] > rank[v])
+                        upStart[v + 1]++;
+                }
+            }
+            for (int v = 0; v < n; v++)
+                upStart[v + 1] += upStart[v];
+            int[] upTarget = new int[upStart[n]];
+            double[] upWeight = new double[upStart[n]];
+            int[] upMiddle = new int[upStart[n]];
+            for (int v = 0; v < n; v++) {
+                int e = upStart[v];
+                for (int k = 0; k < adjSize[v]; k++) {
+                    if (rank[adjNode[v][k]] > rank[v]) {
+                        upTarget[e] = adjNode[v][k];
+                        upWeight[e] = adjWeight[v][k];
+                        upMiddle[e] = adjMiddle[v][k];
+                        e++;
+                    }
+                }
+            }
+            System.err.println("Contraction hierarchy: " + n + " nodes, " + upTarget.length + " upward edges");
+            return new ContractionHierarchy(coords, rank, upStart, upTarget, upWeight, upMiddle);
+        }
+
+        private static long queueEntry(int priority, int node) {
+            return (((long)priority + Integer.MAX_VALUE) << 32) | node;
+        }
+
+        private int priority(int v) {
+            int remaining = 0;
+            for (int k = 0; k < adjSize[v]; k++) {
+                if (!contracted[adjNode[v][k]])
+                    remaining++;
+            }
+            return contract(v, false) - remaining + contractedNeighbours[v];
+        }
+
+        /**
+         * Find the shortcuts needed to contract v: for each pair of
+         * neighbours, a shortcut is needed unless a witness search finds a
+         * path between them that avoids v and is no longer than the path
+         * through v.
+         * @param apply If true, add the shortcuts to the graph
+         * @return The number of shortcuts needed.
+         */
+        private int contract(int v, boolean apply) {
+            int shortcuts = 0;
+            for (int a = 0; a < adjSize[v]; a++) {
+                int u = adjNode[v][a];
+                if (contracted[u])
+                    continue;
+                double maxCost = 0;
+                for (int b = a + 1; b < adjSize[v]; b++) {
+                    if (!contracted[adjNode[v][b]])
+                        maxCost = Math.max(maxCost, adjWeight[v][a] + adjWeight[v][b]);
+                }
+                if (maxCost == 0)
+                    continue;
+                witnessSearch(u, v, maxCost);
+                for (int b = a + 1; b < adjSize[v]; b++) {
+                    int w = adjNode[v][b];
+                    if (contracted[w] || w == u)
+                        continue;
+                    double viaCost = adjWeight[v][a] + adjWeight[v][b];
+                    if (witness.isSeen(w) && witness.cost[w] <= viaCost)
+                        continue;
+                    shortcuts++;
+                    if (apply) {
+                        addEdge(u, w, viaCost, v);
+                        addEdge(w, u, viaCost, v);
+                    }
+                }
+            }
+            return shortcuts;
+        }
+
+        /**
+         * Dijkstra from u over the nodes that are not contracted yet,
+         * leaving out v, up to the given cost or settle limit.
+         */
+        private void witnessSearch(int u, int v, double maxCost) {
+            witness.reset(n);
+            witness.relax(u, -1, 0, 0);
+            int settled = 0;
+            while (!witness.heapIsEmpty() && settled < WITNESS_SETTLE_LIMIT) {
+                int node = witness.pop();
+                settled++;
+                double nodeCost = witness.cost[node];
+                if (nodeCost > maxCost)
+                    break;
+                for (int k = 0; k < adjSize[node]; k++) {
+                    int next = adjNode[node][k];
+                    if (next == v || contracted[next] || witness.isClosed(next))
+                        continue;
+                    double newCost = nodeCost + adjWeight[node][k];
+                    if (!witness.isSeen(next) || newCost < witness.cost[next])
+                        witness.relax(next, node, newCost, newCost);
+                }
+            }
+        }
+
+        /**
+         * Add a directed edge, or lower the weight of the edge that is
+         * already there.
+         */
+        private void addEdge(int from, int to, double weight, int middle) {
+            for (int k = 0; k < adjSize[from]; k++) {
+                if (adjNode[from][k] == to) {
+                    if (weight < adjWeight[from][k]) {
+                        adjWeight[from][k] = weight;
+                        adjMiddle[from][k] = middle;
+                    }
+                    return;
+                }
+            }
+            if (adjSize[from] == adjNode[from].length) {
+                int size = adjSize[from] * 2;
+                adjNode[from] = Arrays.copyOf(adjNode[from], size);
+                adjWeight[from] = Arrays.copyOf(adjWeight[from], size);
+                adjMiddle[from] = Arrays.copyOf(adjMiddle[from], size);
+            }
+            adjNode[from][adjSize[from]] = to;
+            adjWeight[from][adjSize[from]] = weight;
+            adjMiddle[from][adjSize[from]] = middle;
+            adjSize[from]++;
+        }
+    }
+}
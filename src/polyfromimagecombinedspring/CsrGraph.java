@@ -0,0 +1,166 @@
+
+package polyfromimagecombinedspring;
+
+import java.util.IdentityHashMap;
+
+/**
+ * A compact, undirected graph stored in compressed sparse row form. Node i
+ * is at (x(i), y(i)), and its neighbours are the entries from offsets[i] to
+ * offsets[i + 1] of the neighbours array, with the matching weights in the
+ * weights array. Every edge is stored once in each direction.
+ *
+ * Nodes are plain int indices, so path finding can keep its state in arrays
+ * instead of on the nodes. The graph is never modified after it is built,
+ * so it can be shared by many threads at once.
+ */
+public class CsrGraph implements AdjacencyGraph {
+
+    // the node positions, stored as x, y for each node.
+    private final double[] coords;
+    private final int[] offsets;
+    private final int[] neighbours;
+    private final float[] weights;
+
+    /**
+     * Make a graph from arrays that are already in compressed sparse row
+     * form. The arrays are used as they are, not copied.
+     * @param coords The node positions, stored as x, y for each node
+     * @param offsets Where each node's neighbours start, with one extra entry at the end
+     * @param neighbours The neighbour of each directed edge
+     * @param weights The weight of each directed edge
+     */
+    public CsrGraph(double[] coords, int[] offsets, int[] neighbours, float[] weights) {
+        if (offsets.length != (coords.length / 2) + 1 || neighbours.length != weights.length ||
+                offsets[offsets.length - 1] != neighbours.length)
+            throw new IllegalArgumentException("The CSR arrays do not fit together");
+        this.coords = coords;
+        this.offsets = offsets;
+        this.neighbours = neighbours;
+        this.weights = weights;
+    }
+
+    /**
+     * Build a CSR graph from a SimpleGraph. Node i of the new graph is
+     * graph.nodes.get(i), and every SimpleEdge becomes an edge in both
+     * directions with the same weight.
+     * @param graph The graph to convert
+     * @return The compact graph.
+     */
+    public static CsrGraph fromSimpleGraph(SimpleGraph graph) {
+        int n = graph.nodes.size();
+        double[] coords = new double[n * 2];
+        for (int i = 0; i < n; i++) {
+            coords[i * 2] = graph.nodes.get(i).x;
+            coords[i * 2 + 1] = graph.nodes.get(i).y;
+        }
+
+        // find the index of each edge end. Node ids are the node indices
+        // unless nodes were added or removed by hand without renumbering.
+        int[] ends = new int[graph.edges.size() * 2];
+        boolean idsInOrder = true;
+        for (int i = 0; i < n && idsInOrder; i++)
+            idsInOrder = (graph.nodes.get(i).id == i);
+        IdentityHashMap<SimpleNode, Integer> indexOf = null;
+        if (!idsInOrder) {
+            indexOf = new IdentityHashMap<>(n);
+            for (int i = 0; i < n; i++)
+                indexOf.put(graph.nodes.get(i), i);
+        }
+        int[] counts = new int[n + 1];
+        for (int e = 0; e < graph.edges.size(); e++) {
+            SimpleEdge edge = graph.edges.get(e);
+            ends[e * 2] = indexOf(graph, indexOf, edge.p0);
+            ends[e * 2 + 1] = indexOf(graph, indexOf, edge.p1);
+            counts[ends[e * 2] + 1]++;
+            counts[ends[e * 2 + 1] + 1]++;
+        }
+
+        for (int i = 0; i < n; i++)
+            counts[i + 1] += counts[i];
+        int[] offsets = counts.clone();
+        int[] neighbours = new int[counts[n]];
+        float[] weights = new float[counts[n]];
+        for (int e = 0; e < graph.edges.size(); e++) {
+            int a = ends[e * 2];
+            int b = ends[e * 2 + 1];
+            float weight = (float)graph.edges.get(e).getWeight();
+            neighbours[counts[a]] = b;
+            weights[counts[a]++] = weight;
+            neighbours[counts[b]] = a;
+            weights[counts[b]++] = weight;
+        }
+        return new CsrGraph(coords, offsets, neighbours, weights);
+    }
+
+    private static int indexOf(SimpleGraph graph, IdentityHashMap<SimpleNode, Integer> indexOf, SimpleNode node) {
+        if (indexOf == null) {
+            int index = node.id;
+            if (index >= 0 && index < graph.nodes.size() && graph.nodes.get(index) == node)
+                return index;
+        } else {
+            Integer index = indexOf.get(node);
+            if (index != null)
+                return index;
+        }
+        throw new IllegalArgumentException("Edge end " + node + " is not a node of the graph");
+    }
+
+    /**
+     * The number of nodes in the graph.
+     * @return
+     */
+    @Override
+    public int nodeCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * The number of undirected edges in the graph.
+     * @return
+     */
+    public int edgeCount() {
+        return neighbours.length / 2;
+    }
+
+    @Override
+    public double x(int node) {
+        return coords[node * 2];
+    }
+
+    @Override
+    public double y(int node) {
+        return coords[node * 2 + 1];
+    }
+
+    /**
+     * The number of edges leaving the given node.
+     * @param node
+     * @return
+     */
+    @Override
+    public int degree(int node) {
+        return offsets[node + 1] - offsets[node];
+    }
+
+    /**
+     * The k'th neighbour of the given node.
+     * @param node
+     * @param k From 0 up to degree(node)
+     * @return
+     */
+    @Override
+    public int neighbour(int node, int k) {
+        return neighbours[offsets[node] + k];
+    }
+
+    /**
+     * The weight of the edge to the k'th neighbour of the given node.
+     * @param node
+     * @param k From 0 up to degree(node)
+     * @return
+     */
+    @Override
+    public double weight(int node, int k) {
+        return weights[offsets[node] + k];
+    }
+}
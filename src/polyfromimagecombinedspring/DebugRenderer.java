@@ -0,0 +1,224 @@
+
+package polyfromimagecombinedspring;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Draws the raster parts of the output images (the copies of the input,
+ * and the cluster, saliency and threshold images) straight into the pixel
+ * arrays of TYPE_INT_RGB images, instead of one setRGB call per pixel.
+ * Labels are turned into colours with a lookup table made once per image,
+ * and the rows are split into bands that are filled in parallel.
+ *
+ * Lines and polygons are still drawn on top with Graphics2D.
+ */
+public class DebugRenderer {
+
+    // images smaller than this many pixels are filled on the calling thread.
+    private static final int MIN_PARALLEL_PIXELS = 1 << 16;
+
+    // fills the rows from rowStart up to rowEnd.
+    private interface BandTask {
+        void fill(int rowStart, int rowEnd);
+    }
+
+    /**
+     * Make a TYPE_INT_RGB copy of an image. If the image is already
+     * TYPE_INT_RGB its pixels are copied in one go.
+     * @param image The image to copy
+     * @param workers The threads to copy with
+     * @return The copy.
+     */
+    public static BufferedImage copyOf(BufferedImage image, WorkerPool workers) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = pixelsOf(copy);
+        int[] source = (image.getType() == BufferedImage.TYPE_INT_RGB) ? pixelsOf(image) : null;
+        if (source != null && source.length == pixels.length) {
+            System.arraycopy(source, 0, pixels, 0, pixels.length);
+            return copy;
+        }
+        // getRGB converts whole rows at once; the alpha is dropped like setRGB does.
+        fillBands(height, width, workers, (rowStart, rowEnd) -> {
+            image.getRGB(0, rowStart, width, rowEnd - rowStart, pixels, rowStart * width, width);
+            for (int p = rowStart * width; p < rowEnd * width; p++)
+                pixels[p] &= 0xFFFFFF;
+        });
+        return copy;
+    }
+
+    /**
+     * Make an image that colours each pixel by its label.
+     * @param labels The label of each pixel
+     * @param colorOfLabel The RGB colour of each label
+     * @param workers The threads to draw with
+     * @return The image.
+     */
+    public static BufferedImage labelImage(LabelMap labels, int[] colorOfLabel, WorkerPool workers) {
+        int width = labels.getWidth();
+        int height = labels.getHeight();
+        byte[] data = labels.getData();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = pixelsOf(image);
+        // the labels are row-major like the pixels, so a band is one run of both.
+        fillBands(height, width, workers, (rowStart, rowEnd) -> {
+            for (int p = rowStart * width; p < rowEnd * width; p++)
+                pixels[p] = colorOfLabel[data[p] & 0xFF];
+        });
+        return image;
+    }
+
+    /**
+     * Make a two colour image from a mask.
+     * @param mask Whether each pixel is set
+     * @param setRgb The colour of set pixels
+     * @param clearRgb The colour of the other pixels
+     * @param workers The threads to draw with
+     * @return The image.
+     */
+    public static BufferedImage maskImage(EdgeMask mask, int setRgb, int clearRgb, WorkerPool workers) {
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        boolean[] set = mask.getData();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = pixelsOf(image);
+        fillBands(height, width, workers, (rowStart, rowEnd) -> {
+            for (int y = rowStart; y < rowEnd; y++) {
+                int row = y * width;
+                for (int x = 0; x < width; x++)
+                    pixels[row + x] = set[row + x] ? setRgb : clearRgb;
+            }
+        });
+        return image;
+    }
+
+    /**
+     * Make a two colour image from a mask, scaled down. A pixel of the
+     * image is set if any of the pixels of the mask it covers is set, so
+     * thin lines are kept.
+     * @param mask Whether each pixel is set
+     * @param scale How many times smaller the image is along each side
+     * @param setRgb The colour of set pixels
+     * @param clearRgb The colour of the other pixels
+     * @param workers The threads to draw with
+     * @return The image, the size of the mask divided by scale, rounded up.
+     */
+    public static BufferedImage maskImage(EdgeMask mask, int scale, int setRgb, int clearRgb, WorkerPool workers) {
+        if (scale == 1)
+            return maskImage(mask, setRgb, clearRgb, workers);
+        int maskWidth = mask.getWidth();
+        int maskHeight = mask.getHeight();
+        int width = (maskWidth + scale - 1) / scale;
+        int height = (maskHeight + scale - 1) / scale;
+        boolean[] set = mask.getData();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = pixelsOf(image);
+        fillBands(height, width, workers, (rowStart, rowEnd) -> {
+            Arrays.fill(pixels, rowStart * width, rowEnd * width, clearRgb);
+            for (int y = rowStart * scale; y < Math.min(maskHeight, rowEnd * scale); y++) {
+                int row = y * maskWidth;
+                int out = (y / scale) * width;
+                for (int x = 0; x < maskWidth; x++) {
+                    if (set[row + x])
+                        pixels[out + (x / scale)] = setRgb;
+                }
+            }
+        });
+        return image;
+    }
+
+    /**
+     * Make an image filled with one colour.
+     * @param width
+     * @param height
+     * @param rgb
+     * @return The image.
+     */
+    public static BufferedImage filledImage(int width, int height, int rgb) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Arrays.fill(pixelsOf(image), rgb & 0xFFFFFF);
+        return image;
+    }
+
+    /**
+     * A lookup table that gives each label a colour from a palette, going
+     * round the palette again when there are more labels than colours.
+     * @param palette
+     * @param numLabels
+     * @return The RGB colour of each label.
+     */
+    public static int[] paletteColors(Color[] palette, int numLabels) {
+        int[] colors = new int[numLabels];
+        for (int label = 0; label < numLabels; label++)
+            colors[label] = palette[label % palette.length].getRGB() & 0xFFFFFF;
+        return colors;
+    }
+
+    /**
+     * A lookup table that shades each cluster by how salient it is: the
+     * most salient cluster is pure red, the second is a light red, and the
+     * rest are greys that get darker as they get less salient. A cluster
+     * that is not in the ordering is shaded as the most salient one.
+     * @param saliencyOrdering The clusters from most to least salient
+     * @param numClusters
+     * @return The RGB colour of each cluster.
+     */
+    public static int[] saliencyColors(int[] saliencyOrdering, int numClusters) {
+        // a cluster listed more than once gets the rank it has furthest down the list.
+        int[] rank = new int[numClusters];
+        for (int s = 0; s < saliencyOrdering.length; s++)
+            rank[saliencyOrdering[s]] = s;
+        int[] colors = new int[numClusters];
+        for (int c = 0; c < numClusters; c++) {
+            int saliencyValue = (int)(255.0 * ((numClusters - rank[c]) / (double)numClusters));
+            int notRed = (rank[c] == 0) ? 0 : saliencyValue;
+            notRed = (rank[c] == 1) ? 128 : notRed;
+            colors[c] = new Color(saliencyValue, notRed, notRed).getRGB() & 0xFFFFFF;
+        }
+        return colors;
+    }
+
+    /**
+     * The pixel array of a TYPE_INT_RGB image, one int per pixel in rows.
+     */
+    private static int[] pixelsOf(BufferedImage image) {
+        // a sub-image shares a bigger array, so it can't be treated as a flat one.
+        if (!(image.getSampleModel() instanceof SinglePixelPackedSampleModel) ||
+                ((SinglePixelPackedSampleModel)image.getSampleModel()).getScanlineStride() != image.getWidth() ||
+                image.getRaster().getSampleModelTranslateX() != 0 || image.getRaster().getSampleModelTranslateY() != 0)
+            return null;
+        return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Split the rows into bands and fill them on the pool's threads.
+     */
+    private static void fillBands(int height, int width, WorkerPool workers, BandTask task) {
+        int numThreads = workers.getNumThreads();
+        int numBands = Math.max(1, Math.min(height, numThreads * 4));
+        if (numThreads <= 1 || numBands == 1 || ((long)width * height) < MIN_PARALLEL_PIXELS) {
+            task.fill(0, height);
+            return;
+        }
+        try {
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (int b = 0; b < numBands; b++) {
+                final int rowStart = (int)(((long)height * b) / numBands);
+                final int rowEnd = (int)(((long)height * (b + 1)) / numBands);
+                futures.add(workers.submit(() -> task.fill(rowStart, rowEnd)));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Error drawing the image", e);
+        }
+    }
+}
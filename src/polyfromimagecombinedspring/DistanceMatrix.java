@@ -0,0 +1,134 @@
+
+package polyfromimagecombinedspring;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The shortest path lengths between every source point and every target
+ * point on a map. The points don't have to be graph nodes: they are
+ * attached to the visibility graph first, then one Dijkstra search runs
+ * from each source, stopping once all of the targets are settled. The
+ * searches for different sources run in parallel.
+ *
+ * The lengths are stored in one flat array, with the row for each source
+ * holding its distance to every target. If asked for, the paths themselves
+ * are kept too, as x, y coordinates from the source to the target.
+ */
+public class DistanceMatrix {
+
+    public final int numSources, numTargets;
+    // costs[(s * numTargets) + t] is the path length from source s to target t.
+    public final double[] costs;
+    private final double[][] paths;
+
+    private DistanceMatrix(int numSources, int numTargets, double[] costs, double[][] paths) {
+        this.numSources = numSources;
+        this.numTargets = numTargets;
+        this.costs = costs;
+        this.paths = paths;
+    }
+
+    /**
+     * The shortest path length from a source to a target.
+     * @param source
+     * @param target
+     * @return The path length, or infinity if the target can't be reached.
+     */
+    public double cost(int source, int target) {
+        return costs[(source * numTargets) + target];
+    }
+
+    /**
+     * The shortest path from a source to a target.
+     * @param source
+     * @param target
+     * @return The path, stored as x, y for each point from the source to the target,
+     *         or null if the target can't be reached or paths were not kept.
+     */
+    public double[] path(int source, int target) {
+        if (paths == null)
+            return null;
+        return paths[(source * numTargets) + target];
+    }
+
+    /**
+     * Find the shortest path lengths between every pair of source and
+     * target points.
+     * @param graph The visibility graph of the map
+     * @param obstacles The polygon edges the graph was built around
+     * @param sources The source points, stored as x, y for each point
+     * @param targets The target points, stored as x, y for each point
+     * @param keepPaths If true, also keep the path for every pair
+     * @param numThreads The number of searches to run at once
+     * @return The distance matrix.
+     */
+    public static DistanceMatrix compute(AdjacencyGraph graph, SegmentIndex obstacles, double[] sources, double[] targets,
+            boolean keepPaths, int numThreads) {
+        try (WorkerPool workers = new WorkerPool(numThreads)) {
+            return compute(graph, obstacles, sources, targets, keepPaths, workers);
+        }
+    }
+
+    /**
+     * Find the shortest path lengths between every pair of source and
+     * target points, with the threads of a pool that is kept between calls.
+     * @param graph The visibility graph of the map
+     * @param obstacles The polygon edges the graph was built around
+     * @param sources The source points, stored as x, y for each point
+     * @param targets The target points, stored as x, y for each point
+     * @param keepPaths If true, also keep the path for every pair
+     * @param workers The threads to run the searches on
+     * @return The distance matrix.
+     */
+    public static DistanceMatrix compute(AdjacencyGraph graph, SegmentIndex obstacles, double[] sources, double[] targets,
+            boolean keepPaths, WorkerPool workers) {
+        int numSources = sources.length / 2;
+        int numTargets = targets.length / 2;
+        double[] points = new double[sources.length + targets.length];
+        System.arraycopy(sources, 0, points, 0, sources.length);
+        System.arraycopy(targets, 0, points, sources.length, targets.length);
+        AttachedGraph attached = new AttachedGraph(graph, obstacles, points);
+        PathFinder pathFinder = new PathFinder(attached);
+        int[] targetNodes = new int[numTargets];
+        for (int t = 0; t < numTargets; t++)
+            targetNodes[t] = attached.pointNode(numSources + t);
+
+        double[] costs = new double[numSources * numTargets];
+        double[][] paths = keepPaths ? new double[numSources * numTargets][] : null;
+        try {
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (int s = 0; s < numSources; s++) {
+                final int source = s;
+                futures.add(workers.submit(() -> {
+                    // each task fills in its own row, so no locking is needed.
+                    double[] rowCosts = new double[numTargets];
+                    int[][] rowPaths = keepPaths ? new int[numTargets][] : null;
+                    pathFinder.dijkstraToMany(attached.pointNode(source), targetNodes, rowCosts, rowPaths);
+                    System.arraycopy(rowCosts, 0, costs, source * numTargets, numTargets);
+                    if (keepPaths) {
+                        for (int t = 0; t < numTargets; t++)
+                            paths[(source * numTargets) + t] = toCoordinates(attached, rowPaths[t]);
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Error computing the distance matrix", e);
+        }
+        return new DistanceMatrix(numSources, numTargets, costs, paths);
+    }
+
+    private static double[] toCoordinates(AdjacencyGraph graph, int[] path) {
+        if (path == null)
+            return null;
+        double[] coordinates = new double[path.length * 2];
+        for (int i = 0; i < path.length; i++) {
+            coordinates[i * 2] = graph.x(path[i]);
+            coordinates[i * 2 + 1] = graph.y(path[i]);
+        }
+        return coordinates;
+    }
+}
@@ -0,0 +1,687 @@
+
+package polyfromimagecombinedspring;
+
+import java.awt.geom.Line2D;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * A visibility graph that can be updated when obstacles are added, moved or
+ * removed, without building the whole graph again. It keeps the graph in
+ * the same form polygonsToGraph makes it (the four corners, then the padded
+ * points of each polygon, with an edge between every pair of nodes whose
+ * line doesn't touch an unpadded polygon), and changes the SimpleGraph it
+ * was given in place.
+ *
+ * Adding a polygon deletes the edges that cross it and joins its padded
+ * points to everything they can see. Removing one deletes its points and
+ * re-tests only the missing edges whose lines crossed it, since every
+ * other missing edge is still blocked by something else. Those lines are
+ * found by looking, from each node, only at the nodes in the wedge that
+ * the polygon's bounding box covers, as seen from that node.
+ *
+ * The polygons, the nodes and the edges are kept in a uniform grid that is
+ * changed in place as they come and go: each edge is in the cells its line
+ * goes through, so the edges a new polygon might cross are the ones in the
+ * cells its box covers. Line tests walk the cells of the same grid. The
+ * grid is only built again when something lands outside of it, the
+ * number of nodes has grown a lot, or most of its edge entries are for
+ * edges that were deleted.
+ *
+ * Each edge knows where it is in graph.edges and in the edge lists of its
+ * two nodes, so it is taken out in O(1) by moving the last edge of each
+ * list into its place. Nodes are taken out of graph.nodes the same way,
+ * and only the nodes that were moved get new ids. The order of the edges
+ * and of the nodes after the four corners is not kept.
+ */
+public class DynamicVisibilityGraph {
+
+    // how much to grow cells and boxes by so that touching lines are never missed.
+    private static final double EPS = 1e-7;
+    // how much to grow a polygon's box by before finding the wedge behind it,
+    // so nodes on the wedge's sides are not lost to rounding.
+    private static final double WEDGE_MARGIN = 1e-3;
+    // the most cells the grid will have along one axis.
+    private static final int MAX_CELLS_PER_AXIS = 1024;
+
+    private final SimpleGraph graph;
+    private final double polygon_padding_scale;
+    // the polygons by handle; removed ones are left as null so the other handles stay the same.
+    private final ArrayList<Obstacle> obstacles = new ArrayList<>();
+    // the handles of removed polygons, given to the next polygons that are added.
+    private final ArrayDeque<Integer> freeHandles = new ArrayDeque<>();
+    // the link of each edge, in the same order as graph.edges.
+    private final ArrayList<Link> links = new ArrayList<>();
+    // the links of each node.
+    private final IdentityHashMap<SimpleNode, ArrayList<Link>> linksOf = new IdentityHashMap<>();
+    // the number of polygons that are a single point.
+    private int numPointObstacles = 0;
+    // made when it is asked for, and dropped when the polygons change.
+    private SegmentIndex segmentIndex;
+
+    // the grid, with the polygons whose boxes touch each cell and the nodes in each cell.
+    private double originX, originY, cellSize;
+    private int cols, rows;
+    private ArrayList<ArrayList<Obstacle>> obstacleCells;
+    private ArrayList<ArrayList<SimpleNode>> nodeCells;
+    // the links whose lines go through each cell. Deleted ones are dropped when a cell is next looked at.
+    private ArrayList<ArrayList<Link>> edgeCells;
+    private int gridNodeCount;
+    // the number of entries in edgeCells for edges that are still in the graph, and for deleted ones.
+    private long liveEdgeEntries, deadEdgeEntries;
+    // counts the line tests, so a polygon in several cells is only tested once per line.
+    private int lineCount = 0;
+    // counts the searches of edgeCells, so an edge in several cells is only tested once per search.
+    private int searchCount = 0;
+
+    // a polygon, its padded points in the graph, and its bounding box.
+    private static class Obstacle {
+        final ArrayList<SimplePoint> points;
+        final ArrayList<SimpleNode> nodes = new ArrayList<>();
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        // the last line this polygon was tested against.
+        int lastLine = -1;
+
+        Obstacle(ArrayList<SimplePoint> points) {
+            this.points = points;
+            for (SimplePoint p : points) {
+                minX = Math.min(minX, p.x);
+                minY = Math.min(minY, p.y);
+                maxX = Math.max(maxX, p.x);
+                maxY = Math.max(maxY, p.y);
+            }
+        }
+    }
+
+    // an edge, and where it is kept.
+    private static class Link {
+        final SimpleEdge edge;
+        // its index in graph.edges, and in the link lists of edge.p0 and edge.p1.
+        int index, index0, index1;
+        // the number of cells of edgeCells it is in.
+        int numCells;
+        boolean deleted = false;
+        // the last search of edgeCells that found it.
+        int lastSearch = -1;
+
+        Link(SimpleEdge edge) {
+            this.edge = edge;
+        }
+    }
+
+    /**
+     * Wrap a graph that was built by polygonsToGraph, so it can be updated.
+     * @param graph The graph to update in place
+     * @param inputPolys The polygons the graph was built from, in the same order
+     * @param polygon_padding_scale The padding scale the graph was built with
+     */
+    public DynamicVisibilityGraph(SimpleGraph graph, ArrayList<ArrayList<SimplePoint>> inputPolys, double polygon_padding_scale) {
+        this.graph = graph;
+        this.polygon_padding_scale = polygon_padding_scale;
+        int nodeIndex = 4;  // the four corners come first.
+        for (ArrayList<SimplePoint> poly : inputPolys) {
+            Obstacle obstacle = new Obstacle(new ArrayList<>(poly));
+            for (int k = 0; k < poly.size() && nodeIndex < graph.nodes.size(); k++)
+                obstacle.nodes.add(graph.nodes.get(nodeIndex++));
+            obstacles.add(obstacle);
+            if (poly.size() == 1)
+                numPointObstacles++;
+        }
+        if (nodeIndex != graph.nodes.size())
+            throw new IllegalArgumentException("The graph was not built from these polygons");
+        for (SimpleNode node : graph.nodes)
+            linksOf.put(node, new ArrayList<>());
+        for (SimpleEdge edge : graph.edges)
+            addLink(new Link(edge));
+        buildGrid();
+    }
+
+    /**
+     * Build a visibility graph that can be updated.
+     * @param inputPolys The polygons that are the obstacles
+     * @param polygon_padding_scale How much to scale each polygon by
+     * @param boundary_top
+     * @param boundary_bottom
+     * @param boundary_left
+     * @param boundary_right
+     * @return The dynamic graph.
+     */
+    public static DynamicVisibilityGraph build(ArrayList<ArrayList<SimplePoint>> inputPolys, double polygon_padding_scale, int boundary_top, int boundary_bottom, int boundary_left, int boundary_right) {
+        SimpleGraph graph = GeometricOperations.polygonsToGraph(inputPolys, polygon_padding_scale,
+                boundary_top, boundary_bottom, boundary_left, boundary_right);
+        return new DynamicVisibilityGraph(graph, inputPolys, polygon_padding_scale);
+    }
+
+    public SimpleGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * The segment index over the polygons as they are now. It is built the
+     * first time it is asked for after the polygons change.
+     * @return
+     */
+    public SegmentIndex getSegmentIndex() {
+        if (segmentIndex == null)
+            segmentIndex = new SegmentIndex(getPolygons());
+        return segmentIndex;
+    }
+
+    /**
+     * The polygons as they are now, in the order of their handles.
+     * @return
+     */
+    public ArrayList<ArrayList<SimplePoint>> getPolygons() {
+        ArrayList<ArrayList<SimplePoint>> polys = new ArrayList<>();
+        for (Obstacle obstacle : obstacles) {
+            if (obstacle != null)
+                polys.add(obstacle.points);
+        }
+        return polys;
+    }
+
+    /**
+     * The polygon with the given handle, or null if it has been removed
+     * and the handle has not been given to a new polygon yet.
+     * @param handle
+     * @return
+     */
+    public ArrayList<SimplePoint> getPolygon(int handle) {
+        Obstacle obstacle = obstacles.get(handle);
+        return (obstacle == null) ? null : obstacle.points;
+    }
+
+    /**
+     * Add a polygon to the map. Edges that cross it are deleted, and its
+     * padded points are joined to every node they can see.
+     * @param poly The polygon to add (not padded)
+     * @return The handle of the new polygon, used to remove or replace it.
+     * It may be the handle of a polygon that was removed before.
+     */
+    public int addPolygon(ArrayList<SimplePoint> poly) {
+        Obstacle obstacle = new Obstacle(new ArrayList<>(poly));
+        int handle;
+        if (freeHandles.isEmpty()) {
+            handle = obstacles.size();
+            obstacles.add(obstacle);
+        } else {
+            handle = freeHandles.pop();
+            obstacles.set(handle, obstacle);
+        }
+        segmentIndex = null;
+        if (poly.size() == 1)
+            numPointObstacles++;
+
+        // delete the edges that now cross the polygon. Only the edges whose
+        // lines go through the cells the polygon's box covers can cross it.
+        // Every node is in the grid, so every edge is too, and the place it
+        // crosses is in a cell the box covers even if the box sticks out.
+        ArrayList<Link> blocked = new ArrayList<>();
+        int search = ++searchCount;
+        forEachCell(obstacle, (cell) -> {
+            ArrayList<Link> inCell = edgeCells.get(cell);
+            if (inCell == null)
+                return;
+            int kept = 0;
+            for (Link link : inCell) {
+                if (link.deleted)
+                    continue;
+                inCell.set(kept++, link);
+                if (link.lastSearch == search)
+                    continue;
+                link.lastSearch = search;
+                if (crosses(obstacle, link.edge.p0, link.edge.p1))
+                    blocked.add(link);
+            }
+            deadEdgeEntries -= inCell.size() - kept;
+            inCell.subList(kept, inCell.size()).clear();
+        });
+        for (Link link : blocked)
+            removeLink(link);
+
+        // add the padded points, then the edges to them.
+        ArrayList<ArrayList<SimplePoint>> single = new ArrayList<>();
+        single.add(obstacle.points);
+        for (SimplePoint p : GeometricOperations.padPolygons(single, polygon_padding_scale).get(0)) {
+            SimpleNode node = graph.addNode(p.x, p.y);
+            linksOf.put(node, new ArrayList<>());
+            obstacle.nodes.add(node);
+        }
+        if (!insideGrid(obstacle) || graph.nodes.size() > gridNodeCount * 4) {
+            buildGrid();
+        } else {
+            addToGrid(obstacle);
+            for (SimpleNode node : obstacle.nodes)
+                addToGrid(node);
+        }
+        int first = graph.nodes.size() - obstacle.nodes.size();
+        for (int i = first; i < graph.nodes.size(); i++) {
+            SimpleNode node = graph.nodes.get(i);
+            for (int k = 0; k < i; k++)
+                testEdge(node, graph.nodes.get(k));
+        }
+        compactEdgeCells();
+        return handle;
+    }
+
+    /**
+     * Remove a polygon from the map. Its padded points and their edges are
+     * deleted, and the lines that it was blocking are tested again. The
+     * handle is free after this, and is given to a later polygon.
+     * @param handle The handle of the polygon to remove
+     */
+    public void removePolygon(int handle) {
+        Obstacle obstacle = obstacles.get(handle);
+        if (obstacle == null)
+            throw new IllegalArgumentException("Polygon " + handle + " was already removed");
+        obstacles.set(handle, null);
+        freeHandles.push(handle);
+        segmentIndex = null;
+        if (obstacle.points.size() == 1)
+            numPointObstacles--;
+        removeFromGrid(obstacle);
+
+        // delete the polygon's points and their edges. The nodes are taken
+        // out from the highest id down, so the last node, which is moved
+        // into the gap, is never one that still has to be taken out.
+        for (SimpleNode node : obstacle.nodes) {
+            ArrayList<Link> nodeLinks = linksOf.remove(node);
+            for (int i = nodeLinks.size() - 1; i >= 0; i--)
+                removeLink(nodeLinks.get(i));
+            removeFromGrid(node);
+        }
+        ArrayList<SimpleNode> removedNodes = new ArrayList<>(obstacle.nodes);
+        removedNodes.sort((a, b) -> Integer.compare(b.id, a.id));
+        for (SimpleNode node : removedNodes) {
+            int last = graph.nodes.size() - 1;
+            SimpleNode moved = graph.nodes.get(last);
+            graph.nodes.set(node.id, moved);
+            moved.id = node.id;
+            graph.nodes.remove(last);
+        }
+
+        // a missing edge can only come back if its line crossed the polygon,
+        // so from each node only the nodes behind the polygon are looked at.
+        // No edge crosses a polygon, so a line that does is never an edge yet.
+        // Any node may see a new node behind the polygon, so every node is a
+        // start, but only the wedge behind the polygon is looked at from it.
+        for (SimpleNode a : graph.nodes) {
+            forEachNodeBehind(a, obstacle, (b) -> {
+                if (b.id > a.id && crosses(obstacle, a, b))
+                    testEdge(a, b);
+            });
+        }
+        compactEdgeCells();
+    }
+
+    /**
+     * Replace a polygon with a new one, for example when an obstacle moves.
+     * @param handle The handle of the polygon to replace
+     * @param poly The new polygon (not padded)
+     * @return The handle of the new polygon.
+     */
+    public int replacePolygon(int handle, ArrayList<SimplePoint> poly) {
+        removePolygon(handle);
+        return addPolygon(poly);
+    }
+
+    /**
+     * Add an edge between two nodes if the line between them doesn't
+     * touch any polygon. The node with the lower id goes first, as in
+     * polygonsToGraph, since a line that only grazes a corner can be
+     * rounded either way depending on which end it starts from.
+     */
+    private void testEdge(SimpleNode a, SimpleNode b) {
+        if (b.id < a.id) {
+            SimpleNode t = a; a = b; b = t;
+        }
+        if (lineCollides(a, b))
+            return;
+        SimpleEdge l = new SimpleEdge(a, b, a.distanceTo(b));
+        graph.edges.add(l);
+        Link link = new Link(l);
+        addLink(link);
+        addToGrid(link);
+    }
+
+    // keep track of an edge that is already in graph.edges, at the end.
+    private void addLink(Link link) {
+        link.index = links.size();
+        links.add(link);
+        ArrayList<Link> links0 = linksOf.get(link.edge.p0);
+        ArrayList<Link> links1 = linksOf.get(link.edge.p1);
+        link.index0 = links0.size();
+        links0.add(link);
+        link.index1 = links1.size();
+        links1.add(link);
+    }
+
+    /**
+     * Delete an edge, moving the last edge of graph.edges and of each of
+     * the two link lists into its places. It stays in edgeCells until the
+     * cells are next looked at.
+     */
+    private void removeLink(Link link) {
+        int last = links.size() - 1;
+        Link moved = links.get(last);
+        links.set(link.index, moved);
+        graph.edges.set(link.index, moved.edge);
+        moved.index = link.index;
+        links.remove(last);
+        graph.edges.remove(last);
+        removeFromList(linksOf.get(link.edge.p0), link.index0, link.edge.p0);
+        removeFromList(linksOf.get(link.edge.p1), link.index1, link.edge.p1);
+        link.deleted = true;
+        liveEdgeEntries -= link.numCells;
+        deadEdgeEntries += link.numCells;
+    }
+
+    private static void removeFromList(ArrayList<Link> nodeLinks, int index, SimpleNode node) {
+        if (nodeLinks == null)
+            return;  // the node is being taken out, and its list with it.
+        int last = nodeLinks.size() - 1;
+        Link moved = nodeLinks.get(last);
+        nodeLinks.set(index, moved);
+        if (moved.edge.p0 == node)
+            moved.index0 = index;
+        else
+            moved.index1 = index;
+        nodeLinks.remove(last);
+    }
+
+    /**
+     * Return true if the line from a to b touches any polygon. This gives
+     * the same answer as GeometricOperations.lineCollidesPolys, but only
+     * tests the polygons in the grid cells along the line.
+     */
+    private boolean lineCollides(SimpleNode a, SimpleNode b) {
+        // Line2D says two zero length lines always intersect, wherever they are.
+        if (numPointObstacles > 0 && a.x == b.x && a.y == b.y)
+            return true;
+        int line = ++lineCount;
+        return SegmentIndex.walkCells(originX, originY, cellSize, cols, rows, a.x, a.y, b.x, b.y, (cell) -> {
+            ArrayList<Obstacle> inCell = obstacleCells.get(cell);
+            if (inCell == null)
+                return false;
+            for (Obstacle obstacle : inCell) {
+                if (obstacle.lastLine == line)
+                    continue;
+                obstacle.lastLine = line;
+                if (crosses(obstacle, a, b))
+                    return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Return true if the line from a to b touches an edge of the polygon,
+     * checking the bounding boxes first.
+     */
+    private static boolean crosses(Obstacle obstacle, SimpleNode a, SimpleNode b) {
+        // Line2D says two zero length lines always intersect, wherever they are.
+        if (obstacle.points.size() == 1 && a.x == b.x && a.y == b.y)
+            return true;
+        if (Math.max(a.x, b.x) + EPS < obstacle.minX || Math.min(a.x, b.x) - EPS > obstacle.maxX ||
+                Math.max(a.y, b.y) + EPS < obstacle.minY || Math.min(a.y, b.y) - EPS > obstacle.maxY)
+            return false;
+        ArrayList<SimplePoint> poly = obstacle.points;
+        for (int i = 0; i < poly.size(); i++) {
+            int prevIndex = i-1;
+            if (prevIndex < 0)
+                prevIndex = poly.size() - 1;  // wrap around
+            if (Line2D.linesIntersect(a.x, a.y, b.x, b.y,
+                    poly.get(prevIndex).x, poly.get(prevIndex).y, poly.get(i).x, poly.get(i).y))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Visit every node that a line from the given node to it could touch the
+     * polygon's bounding box on the way: the nodes in the wedge the box
+     * covers, as seen from the node. Some nodes near the wedge are visited
+     * as well. If the node is in the box, every node is visited.
+     */
+    private void forEachNodeBehind(SimpleNode from, Obstacle obstacle, Consumer<SimpleNode> visitor) {
+        double minX = obstacle.minX - WEDGE_MARGIN, minY = obstacle.minY - WEDGE_MARGIN;
+        double maxX = obstacle.maxX + WEDGE_MARGIN, maxY = obstacle.maxY + WEDGE_MARGIN;
+        if (from.x >= minX && from.x <= maxX && from.y >= minY && from.y <= maxY) {
+            for (ArrayList<SimpleNode> inCell : nodeCells) {
+                if (inCell != null)
+                    inCell.forEach(visitor);
+            }
+            return;
+        }
+
+        // the two sides of the wedge go through the corners of the box with
+        // the smallest and the largest angle from the line to its center.
+        double refX = ((minX + maxX) / 2) - from.x, refY = ((minY + maxY) / 2) - from.y;
+        double[] cornersX = { minX, maxX, maxX, minX };
+        double[] cornersY = { minY, minY, maxY, maxY };
+        double lowAngle = Double.MAX_VALUE, highAngle = -Double.MAX_VALUE;
+        double lowX = 0, lowY = 0, highX = 0, highY = 0;
+        for (int k = 0; k < 4; k++) {
+            double dx = cornersX[k] - from.x, dy = cornersY[k] - from.y;
+            double angle = Math.atan2((refX * dy) - (refY * dx), (refX * dx) + (refY * dy));
+            if (angle < lowAngle) {
+                lowAngle = angle;
+                lowX = dx;
+                lowY = dy;
+            }
+            if (angle > highAngle) {
+                highAngle = angle;
+                highX = dx;
+                highY = dy;
+            }
+        }
+
+        // cut the grid down to the wedge, then visit the cells under what is left, a column at a time.
+        double[] gridX = { originX, originX + (cols * cellSize), originX + (cols * cellSize), originX };
+        double[] gridY = { originY, originY, originY + (rows * cellSize), originY + (rows * cellSize) };
+        double[][] wedge = clip(gridX, gridY, gridX.length, from.x, from.y, lowX, lowY);
+        wedge = clip(wedge[0], wedge[1], wedge[0].length, from.x, from.y, -highX, -highY);
+        double[] xs = wedge[0], ys = wedge[1];
+        int n = xs.length;
+        if (n == 0)
+            return;
+        double wedgeMinX = Double.MAX_VALUE, wedgeMaxX = -Double.MAX_VALUE;
+        for (int k = 0; k < n; k++) {
+            wedgeMinX = Math.min(wedgeMinX, xs[k]);
+            wedgeMaxX = Math.max(wedgeMaxX, xs[k]);
+        }
+        int startCol = clamp((int)Math.floor((wedgeMinX - EPS - originX) / cellSize), cols);
+        int endCol = clamp((int)Math.floor((wedgeMaxX + EPS - originX) / cellSize), cols);
+        for (int c = startCol; c <= endCol; c++) {
+            double colMinX = originX + (c * cellSize) - EPS;
+            double colMaxX = originX + ((c + 1) * cellSize) + EPS;
+            // the lowest and highest the wedge goes in this column are on its edges.
+            double low = Double.MAX_VALUE, high = -Double.MAX_VALUE;
+            for (int k = 0; k < n; k++) {
+                double x0 = xs[k], y0 = ys[k];
+                double x1 = xs[(k + 1) % n], y1 = ys[(k + 1) % n];
+                if (Math.max(x0, x1) < colMinX || Math.min(x0, x1) > colMaxX)
+                    continue;
+                if (x0 == x1) {
+                    low = Math.min(low, Math.min(y0, y1));
+                    high = Math.max(high, Math.max(y0, y1));
+                    continue;
+                }
+                double ya = y0 + (((Math.max(Math.min(x0, x1), colMinX) - x0) / (x1 - x0)) * (y1 - y0));
+                double yb = y0 + (((Math.min(Math.max(x0, x1), colMaxX) - x0) / (x1 - x0)) * (y1 - y0));
+                low = Math.min(low, Math.min(ya, yb));
+                high = Math.max(high, Math.max(ya, yb));
+            }
+            if (low > high)
+                continue;
+            int startRow = clamp((int)Math.floor((low - EPS - originY) / cellSize), rows);
+            int endRow = clamp((int)Math.floor((high + EPS - originY) / cellSize), rows);
+            for (int r = startRow; r <= endRow; r++) {
+                ArrayList<SimpleNode> inCell = nodeCells.get((r * cols) + c);
+                if (inCell != null)
+                    inCell.forEach(visitor);
+            }
+        }
+    }
+
+    /**
+     * Cut a convex polygon down to the part to the left of a line through
+     * (x, y) going in the direction (dx, dy), or on it.
+     * @return The xs and the ys of the points of what is left.
+     */
+    private static double[][] clip(double[] xs, double[] ys, int n, double x, double y, double dx, double dy) {
+        double[] outX = new double[n + 1], outY = new double[n + 1];
+        int used = 0;
+        for (int k = 0; k < n; k++) {
+            int next = (k + 1) % n;
+            double side0 = (dx * (ys[k] - y)) - (dy * (xs[k] - x));
+            double side1 = (dx * (ys[next] - y)) - (dy * (xs[next] - x));
+            if (side0 >= 0) {
+                outX[used] = xs[k];
+                outY[used++] = ys[k];
+            }
+            if ((side0 >= 0) != (side1 >= 0)) {
+                double t = side0 / (side0 - side1);
+                outX[used] = xs[k] + (t * (xs[next] - xs[k]));
+                outY[used++] = ys[k] + (t * (ys[next] - ys[k]));
+            }
+        }
+        return new double[][] { Arrays.copyOf(outX, used), Arrays.copyOf(outY, used) };
+    }
+
+    /**
+     * Build the grid over the polygons and the nodes as they are now, with
+     * about one node in each cell.
+     */
+    private void buildGrid() {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (SimpleNode node : graph.nodes) {
+            minX = Math.min(minX, node.x);
+            minY = Math.min(minY, node.y);
+            maxX = Math.max(maxX, node.x);
+            maxY = Math.max(maxY, node.y);
+        }
+        for (Obstacle obstacle : obstacles) {
+            if (obstacle == null)
+                continue;
+            minX = Math.min(minX, obstacle.minX);
+            minY = Math.min(minY, obstacle.minY);
+            maxX = Math.max(maxX, obstacle.maxX);
+            maxY = Math.max(maxY, obstacle.maxY);
+        }
+        if (minX > maxX) {
+            minX = minY = maxX = maxY = 0;
+        }
+        int n = Math.max(graph.nodes.size(), 1);
+        double width = Math.max(maxX - minX, 1);
+        double height = Math.max(maxY - minY, 1);
+        double size = Math.sqrt((width * height) / n);
+        size = Math.max(size, Math.max(width, height) / MAX_CELLS_PER_AXIS);
+        originX = minX - EPS;
+        originY = minY - EPS;
+        cellSize = size;
+        cols = Math.max(1, (int)Math.ceil((width + 2 * EPS) / size));
+        rows = Math.max(1, (int)Math.ceil((height + 2 * EPS) / size));
+        gridNodeCount = n;
+
+        obstacleCells = new ArrayList<>(Collections.nCopies(cols * rows, (ArrayList<Obstacle>)null));
+        nodeCells = new ArrayList<>(Collections.nCopies(cols * rows, (ArrayList<SimpleNode>)null));
+        for (Obstacle obstacle : obstacles) {
+            if (obstacle != null)
+                addToGrid(obstacle);
+        }
+        for (SimpleNode node : graph.nodes)
+            addToGrid(node);
+        buildEdgeCells();
+    }
+
+    private void buildEdgeCells() {
+        edgeCells = new ArrayList<>(Collections.nCopies(cols * rows, (ArrayList<Link>)null));
+        liveEdgeEntries = 0;
+        deadEdgeEntries = 0;
+        for (Link link : links)
+            addToGrid(link);
+    }
+
+    private boolean insideGrid(Obstacle obstacle) {
+        double gridMaxX = originX + (cols * cellSize), gridMaxY = originY + (rows * cellSize);
+        if (obstacle.minX < originX || obstacle.maxX > gridMaxX || obstacle.minY < originY || obstacle.maxY > gridMaxY)
+            return false;
+        for (SimpleNode node : obstacle.nodes) {
+            if (node.x < originX || node.x > gridMaxX || node.y < originY || node.y > gridMaxY)
+                return false;
+        }
+        return true;
+    }
+
+    private void addToGrid(Obstacle obstacle) {
+        forEachCell(obstacle, (cell) -> {
+            if (obstacleCells.get(cell) == null)
+                obstacleCells.set(cell, new ArrayList<>());
+            obstacleCells.get(cell).add(obstacle);
+        });
+    }
+
+    private void removeFromGrid(Obstacle obstacle) {
+        forEachCell(obstacle, (cell) -> obstacleCells.get(cell).remove(obstacle));
+    }
+
+    // drop the entries of deleted edges once there are more of them than live ones.
+    private void compactEdgeCells() {
+        if (deadEdgeEntries > liveEdgeEntries + (cols * rows))
+            buildEdgeCells();
+    }
+
+    private void addToGrid(Link link) {
+        SimpleEdge edge = link.edge;
+        link.numCells = 0;
+        SegmentIndex.walkCells(originX, originY, cellSize, cols, rows, edge.p0.x, edge.p0.y, edge.p1.x, edge.p1.y, (cell) -> {
+            if (edgeCells.get(cell) == null)
+                edgeCells.set(cell, new ArrayList<>());
+            edgeCells.get(cell).add(link);
+            link.numCells++;
+            return false;
+        });
+        liveEdgeEntries += link.numCells;
+    }
+
+    private void addToGrid(SimpleNode node) {
+        int cell = cellOf(node);
+        if (nodeCells.get(cell) == null)
+            nodeCells.set(cell, new ArrayList<>());
+        nodeCells.get(cell).add(node);
+    }
+
+    private void removeFromGrid(SimpleNode node) {
+        nodeCells.get(cellOf(node)).remove(node);
+    }
+
+    // the cells the polygon's box touches.
+    private void forEachCell(Obstacle obstacle, IntConsumer visitor) {
+        int startCol = clamp((int)Math.floor((obstacle.minX - EPS - originX) / cellSize), cols);
+        int endCol = clamp((int)Math.floor((obstacle.maxX + EPS - originX) / cellSize), cols);
+        int startRow = clamp((int)Math.floor((obstacle.minY - EPS - originY) / cellSize), rows);
+        int endRow = clamp((int)Math.floor((obstacle.maxY + EPS - originY) / cellSize), rows);
+        for (int r = startRow; r <= endRow; r++) {
+            for (int c = startCol; c <= endCol; c++)
+                visitor.accept((r * cols) + c);
+        }
+    }
+
+    private int cellOf(SimpleNode node) {
+        int c = clamp((int)Math.floor((node.x - originX) / cellSize), cols);
+        int r = clamp((int)Math.floor((node.y - originY) / cellSize), rows);
+        return (r * cols) + c;
+    }
+
+    private static int clamp(int cell, int numCells) {
+        return Math.max(0, Math.min(numCells - 1, cell));
+    }
+}
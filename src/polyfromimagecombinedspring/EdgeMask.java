@@ -0,0 +1,52 @@
+
+package polyfromimagecombinedspring;
+
+/**
+ * Whether each pixel of an image is an edge pixel, as found by the
+ * threshold stage, one boolean per pixel in one flat array in row-major
+ * order. This is the same order as LabelMap, so the threshold pass reads
+ * the labels and writes the mask in the order they are stored.
+ *
+ * Passes over every pixel should walk the array with getData, a row at a
+ * time, rather than calling get for each pixel.
+ */
+public class EdgeMask {
+
+    private final int width, height;
+    private final boolean[] mask;
+
+    /**
+     * Make a mask with no pixels set.
+     * @param width
+     * @param height
+     */
+    public EdgeMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.mask = new boolean[width * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean get(int x, int y) {
+        return mask[(y * width) + x];
+    }
+
+    public void set(int x, int y, boolean edge) {
+        mask[(y * width) + x] = edge;
+    }
+
+    /**
+     * The mask itself, row-major.
+     * @return
+     */
+    public boolean[] getData() {
+        return mask;
+    }
+}
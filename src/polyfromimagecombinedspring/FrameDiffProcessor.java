@@ -0,0 +1,360 @@
+
+package polyfromimagecombinedspring;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Processes the frames of a map that changes a little at a time, such as
+ * snapshots from a camera or a simulation, reusing the work done on the
+ * last frame. Each frame is compared to the last one in tiles, and only
+ * the tiles that changed are worked out again:
+ *
+ *   labels     found again for the changed tiles and a halo around them
+ *              as wide as the texture window reaches
+ *   edges      found again for the relabelled pixels and 1 pixel around them
+ *   groups     found again for the whole image, but only if an edge changed
+ *   graph      the polygons that went away are removed from a dynamic
+ *              visibility graph and the new ones are added, instead of
+ *              building the graph again
+ *
+ * Texture clustering is k-means over the whole image, so the clusters of
+ * one tile can't be found on their own. Changed pixels are given to the
+ * nearest cluster centre of the last full frame, and the saliency ordering
+ * of that frame is kept. A full frame is worked out when the size changes,
+ * when more than a fraction of the tiles changed, every so many frames if
+ * asked, and after refresh(). Colour clustering is not supported.
+ *
+ * The processor installs its own stages on a Pipeline, so getPipeline()
+ * can be handed to anything that runs a pipeline on an image. Only
+ * process should be called on it, not processEdges, and it keeps state
+ * between frames, so it is used from one thread. As with any pipeline,
+ * the label map and edge mask of a result are written over by the next
+ * frame. The dynamic graph changes in place, so each result gets a copy
+ * of it that can be kept, such as by jobs still writing the last frame.
+ */
+public class FrameDiffProcessor {
+
+    private final PipelineConfig config;
+    private final Pipeline pipeline;
+    private final int tileSize;
+    private double maxDirtyFraction = 0.5;
+    private int fullRefreshInterval = 0;
+
+    // what is kept from the last frame.
+    private int width = -1, height = -1;
+    private int[] pixels, previousPixels;  // row-major
+    private LabelMap labels;
+    private int[] saliencyOrdering;
+    private double[] centroids;  // the texture cluster centres of the last full frame
+    private int[] window;
+    private double[] description;
+    private float[] features;  // of one pixel
+    private EdgeMask edges;
+    private ArrayList<ArrayList<SimplePoint>> groups, polygons;
+    private DynamicVisibilityGraph graph;
+    // the copy of the graph handed out with the last frame's result.
+    private SimpleGraph graphCopy;
+    // the graph handles of each polygon, keyed by its points.
+    private HashMap<String, ArrayDeque<Integer>> handlesByPolygon = new HashMap<>();
+
+    // what happened to the current frame.
+    private ArrayList<int[]> dirtyTiles = new ArrayList<>();  // {x0, y0, x1, y1}
+    private boolean refreshNeeded = true;
+    private boolean fullFrame, edgesChanged;
+    private int framesSinceFull;
+
+    /**
+     * Make a processor for a sequence of frames.
+     * @param config The pipeline settings; the method must be texture or ground truth
+     * @param tileSize The width and height of the tiles that are compared
+     */
+    public FrameDiffProcessor(PipelineConfig config, int tileSize) {
+        if (config.method == PipelineConfig.Method.COLOR)
+            throw new IllegalArgumentException("Colour clustering can't be worked out a tile at a time");
+        if (tileSize < 1)
+            throw new IllegalArgumentException("Bad tile size " + tileSize);
+        this.config = config;
+        this.tileSize = tileSize;
+        pipeline = new Pipeline(config);
+        pipeline.setSegmentationStage(this::segment);
+        pipeline.setThresholdStage(this::threshold);
+        pipeline.setGroupingStage((points, c) -> edgesChanged ? (groups = GeometricOperations.groupPoints(points,
+                c.groupMinDistance, c.groupMaxDistance, c.groupCutoffSize, c.groupMinVariance)) : groups);
+        pipeline.setHullStage((g, c) -> edgesChanged ?
+                (polygons = GeometricOperations.convexHullOnPointGroups(g, c.hullMaxDistance)) : polygons);
+        pipeline.setGraphStage(this::updateGraph);
+    }
+
+    /**
+     * The pipeline to run each frame through, in order.
+     * @return
+     */
+    public Pipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Work out the next frame in full.
+     */
+    public void refresh() {
+        refreshNeeded = true;
+    }
+
+    /**
+     * @param maxDirtyFraction The fraction of tiles that can change before a frame is worked out in full
+     */
+    public void setMaxDirtyFraction(double maxDirtyFraction) {
+        this.maxDirtyFraction = maxDirtyFraction;
+    }
+
+    /**
+     * @param fullRefreshInterval Work out every this many frames in full, so
+     *                            the texture clusters don't get stale, or 0 for never
+     */
+    public void setFullRefreshInterval(int fullRefreshInterval) {
+        this.fullRefreshInterval = fullRefreshInterval;
+    }
+
+    /**
+     * Whether the last frame was worked out in full.
+     * @return
+     */
+    public boolean wasLastFrameFull() {
+        return fullFrame;
+    }
+
+    /**
+     * The number of tiles that changed in the last frame, or every tile if
+     * it was worked out in full.
+     * @return
+     */
+    public int getLastDirtyTiles() {
+        return fullFrame ? tilesAcross() * tilesDown() : dirtyTiles.size();
+    }
+
+    /**
+     * The graph as it is after the last frame.
+     * @return
+     */
+    public DynamicVisibilityGraph getDynamicGraph() {
+        return graph;
+    }
+
+    private int tilesAcross() {
+        return (width + tileSize - 1) / tileSize;
+    }
+
+    private int tilesDown() {
+        return (height + tileSize - 1) / tileSize;
+    }
+
+    /**
+     * Stage 1: decide whether the frame is worked out in full or only in
+     * the tiles that changed, and find the labels.
+     */
+    private void segment(BufferedImage image, PipelineConfig c, Pipeline.Scratch scratch, Pipeline.Result result) {
+        long beforeTime = System.currentTimeMillis();
+        if (image.getWidth() != width || image.getHeight() != height) {
+            width = image.getWidth();
+            height = image.getHeight();
+            pixels = new int[width * height];
+            previousPixels = null;
+            labels = new LabelMap(width, height);
+            edges = new EdgeMask(width, height);
+            refreshNeeded = true;
+        }
+        image.getRGB(0, 0, width, height, pixels, 0, width);
+        if (fullRefreshInterval > 0 && framesSinceFull + 1 >= fullRefreshInterval)
+            refreshNeeded = true;
+        if (!refreshNeeded) {
+            findDirtyTiles();
+            refreshNeeded = dirtyTiles.size() > maxDirtyFraction * tilesAcross() * tilesDown();
+        }
+        fullFrame = refreshNeeded;
+        refreshNeeded = false;
+
+        if (fullFrame) {
+            framesSinceFull = 0;
+            segmentFull(c, scratch, result);
+        } else {
+            framesSinceFull++;
+            int halo = labelHalo(c);
+            for (int[] tile : dirtyTiles)
+                relabel(c, Math.max(0, tile[0] - halo), Math.max(0, tile[1] - halo),
+                        Math.min(width, tile[2] + halo), Math.min(height, tile[3] + halo));
+            result.timeStage1cluster = System.currentTimeMillis() - beforeTime;
+        }
+        if (c.verbose)
+            System.out.println(fullFrame ? "Working out the whole frame." :
+                    (dirtyTiles.size() + " of " + (tilesAcross() * tilesDown()) + " tiles changed."));
+        result.clusterMembership = labels;
+        result.clusterSaliencyOrdering = saliencyOrdering;
+
+        // keep this frame to compare the next one to.
+        int[] swap = (previousPixels == null) ? new int[pixels.length] : previousPixels;
+        previousPixels = pixels;
+        pixels = swap;
+    }
+
+    /**
+     * How far a changed pixel can change the labels around it.
+     */
+    private static int labelHalo(PipelineConfig c) {
+        return (c.method == PipelineConfig.Method.TEXTURE) ? (c.textureWindow + 1) / 2 : 0;
+    }
+
+    private void findDirtyTiles() {
+        dirtyTiles.clear();
+        for (int y0 = 0; y0 < height; y0 += tileSize) {
+            int y1 = Math.min(height, y0 + tileSize);
+            for (int x0 = 0; x0 < width; x0 += tileSize) {
+                int x1 = Math.min(width, x0 + tileSize);
+                for (int y = y0; y < y1; y++) {
+                    int row = y * width;
+                    if (!Arrays.equals(pixels, row + x0, row + x1, previousPixels, row + x0, row + x1)) {
+                        dirtyTiles.add(new int[] { x0, y0, x1, y1 });
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void segmentFull(PipelineConfig c, Pipeline.Scratch scratch, Pipeline.Result result) {
+        int numClusters = c.numClusters;
+        if (c.method == PipelineConfig.Method.TEXTURE) {
+            long beforeTime = System.currentTimeMillis();
+            float[] allFeatures = scratch.textureFeatures();
+            TextureClusterer.findTextureFeatures(pixels, width, height, c.textureWindow, allFeatures);
+            result.timeTextures = System.currentTimeMillis() - beforeTime;
+
+            beforeTime = System.currentTimeMillis();
+            // the centres of the clusters the k-means ended with, for labelling changed pixels.
+            centroids = TextureClusterer.textureClusteringIndices(width, height, allFeatures, numClusters, labels);
+            result.timeStage1cluster = System.currentTimeMillis() - beforeTime;
+
+            beforeTime = System.currentTimeMillis();
+            saliencyOrdering = TextureClusterer.findSalientImageClusters(width, height, allFeatures, labels, numClusters);
+            result.timeStage1saliency = System.currentTimeMillis() - beforeTime;
+        } else { // ground truth image.
+            long beforeTime = System.currentTimeMillis();
+            relabel(c, 0, 0, width, height);
+            saliencyOrdering = new int[ numClusters ]; // cluster 0 is the obstacles.
+            result.timeStage1cluster = System.currentTimeMillis() - beforeTime;
+        }
+    }
+
+    /**
+     * Find the labels of the pixels in a rectangle again.
+     */
+    private void relabel(PipelineConfig c, int x0, int y0, int x1, int y1) {
+        boolean texture = (c.method == PipelineConfig.Method.TEXTURE);
+        if (texture && (window == null || window.length != c.textureWindow * c.textureWindow)) {
+            window = new int[ c.textureWindow * c.textureWindow ];
+            description = new double[ TextureDescription.NUM_FEATURES ];
+            features = new float[ TextureDescription.NUM_FEATURES ];
+        }
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                if (texture) {
+                    TextureClusterer.findTextureFeatures(pixels, width, height, x, y, c.textureWindow, window, description);
+                    // rounded the same way as the features of a full frame.
+                    for (int f = 0; f < features.length; f++)
+                        features[f] = (float)description[f];
+                    labels.set(x, y, TextureClusterer.closestTextureCentre(centroids, c.numClusters, features, 0));
+                } else {
+                    labels.set(x, y, ((pixels[(y * width) + x] >> 16) & 0xFF) < 32 ? 0 : 1); // black is cluster 0
+                }
+            }
+        }
+    }
+
+    /**
+     * Stage 1: the edge pixels, the same as the default threshold, found
+     * again only around the relabelled pixels.
+     */
+    private EdgeMask threshold(Pipeline.Result result, PipelineConfig c, Pipeline.Scratch scratch) {
+        if (fullFrame) {
+            // the border is never an edge, and everything inside it is written.
+            findEdges(1, 1, width - 1, height - 1);
+            edgesChanged = true;
+        } else {
+            int halo = labelHalo(c) + 1;
+            edgesChanged = false;
+            for (int[] tile : dirtyTiles) {
+                if (findEdges(Math.max(1, tile[0] - halo), Math.max(1, tile[1] - halo),
+                        Math.min(width - 1, tile[2] + halo), Math.min(height - 1, tile[3] + halo)))
+                    edgesChanged = true;
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Find the edge pixels in a rectangle again.
+     * @return Whether any of them changed.
+     */
+    private boolean findEdges(int x0, int y0, int x1, int y1) {
+        // whether each label is one of the two most salient clusters.
+        boolean[] isSalient = new boolean[ LabelMap.MAX_LABELS ];
+        isSalient[saliencyOrdering[0]] = true;
+        isSalient[saliencyOrdering[1]] = true;
+        return Pipeline.findEdges(labels.getData(), width, isSalient, edges.getData(), x0, y0, x1, y1);
+    }
+
+    /**
+     * Stage 4: build the graph for a full frame, or change the last graph
+     * to fit the new polygons.
+     */
+    private SimpleGraph updateGraph(ArrayList<ArrayList<SimplePoint>> polys, int width, int height, PipelineConfig c) {
+        if (fullFrame) {
+            SimpleGraph simpleGraph = GeometricOperations.polygonsToGraph(polys, c.paddingScale,
+                    0, height, 0, width, pipeline.getWorkers());
+            graph = new DynamicVisibilityGraph(simpleGraph, polys, c.paddingScale);
+            handlesByPolygon = new HashMap<>();
+            for (int i = 0; i < polys.size(); i++)
+                handlesByPolygon.computeIfAbsent(polygonKey(polys.get(i)), k -> new ArrayDeque<>()).add(i);
+            graphCopy = simpleGraph.copy();
+            return graphCopy;
+        }
+        if (!edgesChanged)
+            return graphCopy;  // nothing changed, so the last copy is still right.
+
+        // keep the polygons that are in both frames, and remove and add the rest.
+        HashMap<String, ArrayDeque<Integer>> kept = new HashMap<>();
+        ArrayList<ArrayList<SimplePoint>> added = new ArrayList<>();
+        for (ArrayList<SimplePoint> poly : polys) {
+            String key = polygonKey(poly);
+            ArrayDeque<Integer> handles = handlesByPolygon.get(key);
+            if (handles != null && !handles.isEmpty())
+                kept.computeIfAbsent(key, k -> new ArrayDeque<>()).add(handles.poll());
+            else
+                added.add(poly);
+        }
+        int removed = 0;
+        for (ArrayDeque<Integer> handles : handlesByPolygon.values()) {
+            for (int handle : handles) {
+                graph.removePolygon(handle);
+                removed++;
+            }
+        }
+        for (ArrayList<SimplePoint> poly : added)
+            kept.computeIfAbsent(polygonKey(poly), k -> new ArrayDeque<>()).add(graph.addPolygon(poly));
+        handlesByPolygon = kept;
+        if (c.verbose)
+            System.out.println(removed + " polygons removed and " + added.size() + " added.");
+        graphCopy = graph.getGraph().copy();
+        return graphCopy;
+    }
+
+    private static String polygonKey(ArrayList<SimplePoint> poly) {
+        StringBuilder key = new StringBuilder();
+        for (SimplePoint p : poly)
+            key.append(p.x).append(',').append(p.y).append(';');
+        return key.toString();
+    }
+}
@@ -4,7 +4,10 @@ package polyfromimagecombinedspring;
 import java.awt.Polygon;
 import java.awt.geom.Line2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Stack;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * This is where I am stuffing all of the geometric operations like 
@@ -292,13 +295,145 @@ public class GeometricOperations {
     
     
      public static SimpleGraph polygonsToGraph(ArrayList<ArrayList<SimplePoint>> inputPolys, double polygon_padding_scale, int boundary_top, int boundary_bottom, int boundary_left, int boundary_right) {
-        // each array is going to be a polygon, where the points are 
-        // all stored as point objects.
-        // points and edges are the output arrays
-        ArrayList<SimplePoint> points = new ArrayList<>();
-        SimpleGraph simpleGraph = new SimpleGraph();
-       // System.err.println("Number of polygons: " + inputPolys.size());
+        SimpleGraph simpleGraph = graphNodesFromPolygons(inputPolys, polygon_padding_scale, 
+                boundary_top, boundary_bottom, boundary_left, boundary_right);
+        
+        // Attempt #3:
+        //System.err.println("number of polygons: " + inputPolys.size());        
+        System.err.println("number of nodes in the graph: " + simpleGraph.nodes.size());        
+        // index the polygon edges so each candidate line only tests the edges near it.
+        SegmentIndex segmentIndex = new SegmentIndex(inputPolys);
+        for (int i = 0; i < simpleGraph.nodes.size(); i++) {
+            for (int j = i+1; j < simpleGraph.nodes.size(); j++) {
+                SimpleNode p1 = simpleGraph.nodes.get(i);
+                SimpleNode p2 = simpleGraph.nodes.get(j);
+                SimpleEdge l = new SimpleEdge(p1, p2, p1.distanceTo(p2));      // candidate line
+                if (!lineCollidesPolys(l, segmentIndex)) {
+                    simpleGraph.edges.add(l);
+                }
+            }
+        }
+        System.err.println("Number of edges " + simpleGraph.edges.size());
+        
+        return simpleGraph;
+     }
+    
+    
+    /**
+     * Build the same visibility graph as polygonsToGraph, using several 
+     * threads to test the node pairs. The pairs (i, j) with i < j are split 
+     * into chunks of whole rows with about the same number of pairs in each. 
+     * Each chunk writes the pairs that can see each other into its own int 
+     * buffer, and the buffers are joined in chunk order at the end, so the 
+     * edges come out in the same order as polygonsToGraph.
+     * @param inputPolys The polygons that are the obstacles
+     * @param polygon_padding_scale How much to scale each polygon by
+     * @param boundary_top
+     * @param boundary_bottom
+     * @param boundary_left
+     * @param boundary_right
+     * @param numThreads The number of threads to test pairs with
+     * @return The visibility graph.
+     */
+    public static SimpleGraph polygonsToGraph(ArrayList<ArrayList<SimplePoint>> inputPolys, double polygon_padding_scale, int boundary_top, int boundary_bottom, int boundary_left, int boundary_right, int numThreads) {
+        try (WorkerPool workers = new WorkerPool(numThreads)) {
+            return polygonsToGraph(inputPolys, polygon_padding_scale, boundary_top, boundary_bottom,
+                    boundary_left, boundary_right, workers);
+        }
+    }
+
+    /**
+     * Build the visibility graph with the threads of a pool that is kept
+     * between graphs, as above.
+     * @param inputPolys The polygons that are the obstacles
+     * @param polygon_padding_scale How much to scale each polygon by
+     * @param boundary_top
+     * @param boundary_bottom
+     * @param boundary_left
+     * @param boundary_right
+     * @param workers The threads to test pairs with
+     * @return The visibility graph.
+     */
+    public static SimpleGraph polygonsToGraph(ArrayList<ArrayList<SimplePoint>> inputPolys, double polygon_padding_scale, int boundary_top, int boundary_bottom, int boundary_left, int boundary_right, WorkerPool workers) {
+        int numThreads = workers.getNumThreads();
+        SimpleGraph simpleGraph = graphNodesFromPolygons(inputPolys, polygon_padding_scale, 
+                boundary_top, boundary_bottom, boundary_left, boundary_right);
+        System.err.println("number of nodes in the graph: " + simpleGraph.nodes.size());        
+        
+        int n = simpleGraph.nodes.size();
+        double[] nodeX = new double[n];
+        double[] nodeY = new double[n];
+        for (int i = 0; i < n; i++) {
+            nodeX[i] = simpleGraph.nodes.get(i).x;
+            nodeY[i] = simpleGraph.nodes.get(i).y;
+        }
+        SegmentIndex segmentIndex = new SegmentIndex(inputPolys);
+        
+        // row i has n - 1 - i pairs, so cut the rows where the running total 
+        // passes each chunk's share. A few chunks per thread evens out the
+        // rows that have more blocked lines than others.
+        int numChunks = Math.max(1, Math.min(n, numThreads * 4));
+        long totalPairs = ((long)n * (n - 1)) / 2;
+        int[] chunkStart = new int[numChunks + 1];
+        long pairsSoFar = 0;
+        int chunk = 1;
+        for (int i = 0; i < n && chunk < numChunks; i++) {
+            pairsSoFar += n - 1 - i;
+            if (pairsSoFar >= (totalPairs * chunk) / numChunks) {
+                chunkStart[chunk++] = i + 1;
+            }
+        }
+        while (chunk <= numChunks) {
+            chunkStart[chunk++] = n;
+        }
+        
+        try {
+            ArrayList<Future<int[]>> results = new ArrayList<>();
+            for (int c = 0; c < numChunks; c++) {
+                final int rowStart = chunkStart[c];
+                final int rowEnd = chunkStart[c + 1];
+                results.add(workers.submit(() -> {
+                    // pairs are stored as i, j one after the other.
+                    int[] pairs = new int[64];
+                    int used = 0;
+                    for (int i = rowStart; i < rowEnd; i++) {
+                        for (int j = i+1; j < n; j++) {
+                            if (!segmentIndex.lineCollides(nodeX[i], nodeY[i], nodeX[j], nodeY[j])) {
+                                if (used + 2 > pairs.length)
+                                    pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                                pairs[used++] = i;
+                                pairs[used++] = j;
+                            }
+                        }
+                    }
+                    return Arrays.copyOf(pairs, used);
+                }));
+            }
+            for (Future<int[]> result : results) {
+                int[] pairs = result.get();
+                for (int k = 0; k < pairs.length; k += 2) {
+                    SimpleNode p1 = simpleGraph.nodes.get(pairs[k]);
+                    SimpleNode p2 = simpleGraph.nodes.get(pairs[k + 1]);
+                    simpleGraph.edges.add(new SimpleEdge(p1, p2, p1.distanceTo(p2)));
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Error building the visibility graph", e);
+        }
+        System.err.println("Number of edges " + simpleGraph.edges.size());
         
+        return simpleGraph;
+    }
+    
+    /**
+     * Grow each polygon by the padding scale about its center, so the 
+     * graph nodes sit a little way outside of the obstacles.
+     * @param inputPolys The polygons to grow
+     * @param polygon_padding_scale How much to scale each polygon by
+     * @return New padded polygons, in the same order as the input polygons.
+     */
+    public static ArrayList<ArrayList<SimplePoint>> padPolygons(ArrayList<ArrayList<SimplePoint>> inputPolys, double polygon_padding_scale) {
+        ArrayList<ArrayList<SimplePoint>> paddedPolys = new ArrayList<>();
         int id_p = 0;
         for (int i = 0; i < inputPolys.size(); i++) {
                 ArrayList<SimplePoint> this_points = new ArrayList<>();
@@ -334,40 +469,47 @@ public class GeometricOperations {
                     p.y = p.y + this_centerY;
                 }                
                 
-                // add the Transformed points to the points array
-                for (int k = 0; k < this_points.size(); k++) {
-                    points.add(this_points.get(k));
-                }
+                paddedPolys.add(this_points);
             }
+        return paddedPolys;
+    }
+    
+    /**
+     * Create a graph with no edges whose nodes are the four corners of 
+     * the map followed by the points of every padded polygon, in order.
+     * Every graph builder starts from these same nodes.
+     * @param inputPolys The polygons that are the obstacles
+     * @param polygon_padding_scale How much to scale each polygon by
+     * @param boundary_top
+     * @param boundary_bottom
+     * @param boundary_left
+     * @param boundary_right
+     * @return A graph with only nodes.
+     */
+    public static SimpleGraph graphNodesFromPolygons(ArrayList<ArrayList<SimplePoint>> inputPolys, double polygon_padding_scale, int boundary_top, int boundary_bottom, int boundary_left, int boundary_right) {
+        // each array is going to be a polygon, where the points are 
+        // all stored as point objects.
+        // points and edges are the output arrays
+        ArrayList<SimplePoint> points = new ArrayList<>();
+        SimpleGraph simpleGraph = new SimpleGraph();
+       // System.err.println("Number of polygons: " + inputPolys.size());
+        
+        // add the Transformed points to the points array
+        for (ArrayList<SimplePoint> paddedPoly : padPolygons(inputPolys, polygon_padding_scale)) {
+            points.addAll(paddedPoly);
+        }
             
         // add the four corners of the map
-        simpleGraph.nodes.add(new SimpleNode(boundary_left, boundary_top));
-        simpleGraph.nodes.add(new SimpleNode(boundary_left, boundary_bottom));
-        simpleGraph.nodes.add(new SimpleNode(boundary_right, boundary_top));
-        simpleGraph.nodes.add(new SimpleNode(boundary_right, boundary_bottom));
+        simpleGraph.addNode(boundary_left, boundary_top);
+        simpleGraph.addNode(boundary_left, boundary_bottom);
+        simpleGraph.addNode(boundary_right, boundary_top);
+        simpleGraph.addNode(boundary_right, boundary_bottom);
         // give each point an ID number representing its index.
-        // this will not change again for the entire program
         for (int i = 0; i < points.size(); i++) {
-            simpleGraph.nodes.add(new SimpleNode(points.get(i).x, points.get(i).y)); //points.get(i).id = i;
+            simpleGraph.addNode(points.get(i).x, points.get(i).y);
         }
-        
-        // Attempt #3:
-        //System.err.println("number of polygons: " + inputPolys.size());        
-        System.err.println("number of nodes in the graph: " + simpleGraph.nodes.size());        
-        for (int i = 0; i < simpleGraph.nodes.size(); i++) {
-            for (int j = i+1; j < simpleGraph.nodes.size(); j++) {
-                SimpleNode p1 = simpleGraph.nodes.get(i);
-                SimpleNode p2 = simpleGraph.nodes.get(j);
-                SimpleEdge l = new SimpleEdge(p1, p2, p1.distanceTo(p2));      // candidate line
-                if (!lineCollidesPolys(l, inputPolys)) {
-                    simpleGraph.edges.add(l);
-                }
-            }
-        }
-        System.err.println("Number of edges " + simpleGraph.edges.size());
-        
         return simpleGraph;
-     }
+    }
     
     
     /**
@@ -396,6 +538,16 @@ public class GeometricOperations {
         return false;
     }
     
+    /**
+     * Return true if the given line collides with any lines in
+     * the polygons held by the given segment index.
+     * @param line The line that is being tested
+     * @param index The index over the polygons to test against
+     * @return True if the line collides with a polygon, false otherwise. 
+     */
+    public static boolean lineCollidesPolys(SimpleEdge line, SegmentIndex index) {
+        return index.lineCollides(line);
+    }
     
     
     
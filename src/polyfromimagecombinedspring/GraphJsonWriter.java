@@ -0,0 +1,82 @@
+
+package polyfromimagecombinedspring;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a graph out as JSON Graph Format: an undirected graph with a
+ * "nodes" array of ids and an "edges" array of source, target and weight.
+ *
+ * The graph is streamed out a chunk at a time through one reused
+ * StringBuilder and a large buffer, so even a graph with millions of edges
+ * never has to be held in memory as text, and numbers are appended straight
+ * into the builder instead of being made into strings first.
+ */
+public class GraphJsonWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Write a graph to a JSON file.
+     * @param graph The graph to write
+     * @param file The file to write
+     * @param gzip If true, gzip the output
+     * @throws IOException
+     */
+    public static void write(SimpleGraph graph, File file, boolean gzip) throws IOException {
+        // the file is opened inside the try, so it is closed even if the gzip header can't be written.
+        try (OutputStream fileStream = Files.newOutputStream(file.toPath());
+                OutputStream stream = gzip ? new GZIPOutputStream(fileStream, BUFFER_SIZE) : fileStream;
+                Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            write(graph, out);
+        }
+    }
+
+    /**
+     * Write a graph as JSON to a writer, which is not closed.
+     * @param graph The graph to write
+     * @param out Where to write the JSON
+     * @throws IOException
+     */
+    public static void write(SimpleGraph graph, Writer out) throws IOException {
+        StringBuilder sb = new StringBuilder(BUFFER_SIZE + 256);
+        sb.append("{\"graph\":{\n");
+        sb.append("\"directed\": false,\n");
+        sb.append("\"nodes\": [\n");
+        for (int i = 0; i < graph.nodes.size(); i++) {
+            if (i != 0)
+                sb.append(",\n");
+            sb.append("{\"id\": \"").append(graph.nodes.get(i).id).append("\"}");
+            flushIfFull(sb, out);
+        }
+        sb.append("\n],\n");
+        sb.append("\"edges\": [\n");
+        for (int i = 0; i < graph.edges.size(); i++) {
+            SimpleEdge edge = graph.edges.get(i);
+            if (i != 0)
+                sb.append(",\n");
+            sb.append("{\"source\": \"").append(edge.p0.id).append("\",");
+            sb.append("\"target\": \"").append(edge.p1.id).append("\",");
+            sb.append("\"metadata\": {\"weight\": ").append(edge.getWeight()).append("}}");
+            flushIfFull(sb, out);
+        }
+        sb.append("\n]\n");
+        sb.append("}}\n");
+        out.append(sb);
+    }
+
+    private static void flushIfFull(StringBuilder sb, Writer out) throws IOException {
+        if (sb.length() >= BUFFER_SIZE) {
+            out.append(sb);
+            sb.setLength(0);
+        }
+    }
+}
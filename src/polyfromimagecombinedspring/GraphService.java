@@ -0,0 +1,301 @@
+
+package polyfromimagecombinedspring;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+/**
+ * A local HTTP service that keeps the pipeline loaded, so small images
+ * don't pay for starting and warming up a JVM each time. It listens on
+ * the loopback address only.
+ *
+ *   POST /graph        the body is an image file; the reply is its graph as
+ *                      JSON, or as a binary graph file with ?format=bin.
+ *                      The stage times are in the X-Stage-Times header.
+ *   GET  /stats        the request counts and the mean time of each stage, as JSON
+ *   GET  /health       "ok"
+ *
+ * Images are processed by a fixed pool of workers, each with its own
+ * Pipeline, behind a bounded queue. A request is only let in while a
+ * worker or a place in the queue is free for it; otherwise it is turned
+ * away at once with 503 and a Retry-After header, before its body is
+ * read. So at most workers + queue images are held in memory, and the
+ * requests that are let in never hold more than that many handler threads.
+ */
+public class GraphService {
+
+    private static final int MAX_IMAGE_BYTES = 64 * 1024 * 1024;
+    // the handler threads that only answer /stats and /health.
+    private static final int SPARE_HANDLERS = 2;
+    private static final String[] STAGE_NAMES = { "textures", "cluster", "saliency", "grouping", "hulls", "graph", "total" };
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor workers;
+    private final ExecutorService handlers;
+    private final ThreadLocal<Pipeline> pipelines;
+    // one permit for each worker and each place in the queue.
+    private final Semaphore admitted;
+
+    // guarded by this.
+    private long requests, rejected, failed, processed;
+    private final long[] stageTotals = new long[ STAGE_NAMES.length ];
+
+    /**
+     * Make a service. It doesn't listen until start is called.
+     * @param config The pipeline settings for every image. Its threads are
+     *               split between the workers, and verbose is turned off.
+     * @param port The port to listen on, or 0 for any free port
+     * @param numWorkers The number of images to process at once, or 0 for one per processor
+     * @param queueCapacity How many images can wait for a worker before requests are turned away
+     * @throws IOException If the port can't be opened
+     */
+    public GraphService(PipelineConfig config, int port, int numWorkers, int queueCapacity) throws IOException {
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (numWorkers <= 0)
+            numWorkers = processors;
+        if (queueCapacity < 0)
+            throw new IllegalArgumentException("Bad queue capacity " + queueCapacity);
+        config.numThreads = Math.max(1, processors / numWorkers);
+        config.verbose = false;
+        config.validate();
+        pipelines = ThreadLocal.withInitial(() -> new Pipeline(config));
+        workers = new ThreadPoolExecutor(numWorkers, numWorkers, 0, TimeUnit.MILLISECONDS,
+                (queueCapacity == 0) ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueCapacity),
+                new ThreadPoolExecutor.AbortPolicy());
+        admitted = new Semaphore(numWorkers + queueCapacity);
+        // every admitted image holds a handler thread while it waits, and there
+        // can only be as many of those as there are permits, so the spare
+        // handlers are always left for turning requests away and for /stats,
+        // which are both quick.
+        handlers = Executors.newFixedThreadPool(numWorkers + queueCapacity + SPARE_HANDLERS);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(handlers);
+        server.createContext("/graph", this::handleGraph);
+        server.createContext("/stats", this::handleStats);
+        server.createContext("/health", (exchange) -> reply(exchange, 200, "text/plain", "ok"));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop listening, and wait for the images being processed.
+     * @param delaySeconds How long to wait for requests that are being answered
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        workers.shutdown();
+        handlers.shutdown();
+    }
+
+    /**
+     * The port the service is listening on.
+     * @return
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handleGraph(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                reply(exchange, 405, "text/plain", "POST an image to /graph");
+                return;
+            }
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (length != null && length.matches("[0-9]+") && Long.parseLong(length) > MAX_IMAGE_BYTES) {
+                reply(exchange, 413, "text/plain", "The image is bigger than " + MAX_IMAGE_BYTES + " bytes");
+                return;
+            }
+            if (!admitted.tryAcquire()) {
+                synchronized (this) {
+                    requests++;
+                    rejected++;
+                }
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                reply(exchange, 503, "text/plain", "Too many images are waiting");
+                return;
+            }
+            try {
+                handleAdmitted(exchange);
+            } finally {
+                admitted.release();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Read, process and answer a request that was let in.
+     */
+    private void handleAdmitted(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        boolean binary = (query != null) && query.contains("format=bin");
+        byte[] body = readBody(exchange.getRequestBody());
+        if (body == null) {
+            reply(exchange, 413, "text/plain", "The image is bigger than " + MAX_IMAGE_BYTES + " bytes");
+            return;
+        }
+        synchronized (this) {
+            requests++;
+        }
+
+        Future<Pipeline.Result> future;
+        try {
+            future = workers.submit(() -> process(body));
+        } catch (RejectedExecutionException e) {
+            // a worker that has just finished may not have taken the next
+            // image from the queue yet, so this can still happen now and then.
+            synchronized (this) {
+                rejected++;
+            }
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            reply(exchange, 503, "text/plain", "Too many images are waiting");
+            return;
+        }
+        Pipeline.Result result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            synchronized (this) {
+                failed++;
+            }
+            reply(exchange, 500, "text/plain", "Error processing the image: " + e.getCause());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reply(exchange, 503, "text/plain", "The service is stopping");
+            return;
+        }
+        if (result == null) {
+            synchronized (this) {
+                failed++;
+            }
+            reply(exchange, 400, "text/plain", "The body is not an image that can be read");
+            return;
+        }
+
+        exchange.getResponseHeaders().set("X-Stage-Times", stageTimes(result));
+        exchange.getResponseHeaders().set("Content-Type", binary ? "application/octet-stream" : "application/json");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = new BufferedOutputStream(exchange.getResponseBody())) {
+            if (binary) {
+                BinaryGraphFile.write(result.graph, Channels.newChannel(out));
+            } else {
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                GraphJsonWriter.write(result.graph, writer);
+                writer.flush();
+            }
+        }
+    }
+
+    /**
+     * Decode an image and run the worker's pipeline on it.
+     * @return What the pipeline made, or null if the image can't be read.
+     */
+    private Pipeline.Result process(byte[] body) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(body));
+        if (image == null)
+            return null;
+        Pipeline.Result result = pipelines.get().process(image);
+        long[] times = times(result);
+        synchronized (this) {
+            processed++;
+            for (int i = 0; i < times.length; i++)
+                stageTotals[i] += times[i];
+        }
+        return result;
+    }
+
+    // the time of each stage, with 0 for stages that didn't run, then their total.
+    private static long[] times(Pipeline.Result result) {
+        long[] stages = { result.timeTextures, result.timeStage1cluster, result.timeStage1saliency,
+            result.timeStage2, result.timeStage3, result.timeStage4, 0 };
+        long total = 0;
+        for (int i = 0; i < stages.length - 1; i++) {
+            stages[i] = Math.max(0, stages[i]);
+            total += stages[i];
+        }
+        stages[stages.length - 1] = total;
+        return stages;
+    }
+
+    private static String stageTimes(Pipeline.Result result) {
+        long[] times = times(result);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times.length; i++)
+            sb.append((i == 0) ? "" : ";").append(STAGE_NAMES[i]).append('=').append(times[i]);
+        return sb.toString();
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        synchronized (this) {
+            sb.append("{\"requests\": ").append(requests);
+            sb.append(", \"processed\": ").append(processed);
+            sb.append(", \"rejected\": ").append(rejected);
+            sb.append(", \"failed\": ").append(failed);
+            sb.append(", \"active\": ").append(workers.getActiveCount());
+            sb.append(", \"queued\": ").append(workers.getQueue().size());
+            sb.append(", \"meanStageMillis\": {");
+            for (int i = 0; i < STAGE_NAMES.length; i++) {
+                double mean = (processed == 0) ? 0 : (double)stageTotals[i] / processed;
+                sb.append((i == 0) ? "" : ", ").append('"').append(STAGE_NAMES[i]).append("\": ")
+                        .append(String.format(Locale.ROOT, "%.3f", mean));
+            }
+            sb.append("}}");
+        }
+        reply(exchange, 200, "application/json", sb.toString());
+    }
+
+    /**
+     * Read a request body, or return null if it is too big.
+     */
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (body.size() + read > MAX_IMAGE_BYTES)
+                return null;
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    private static void reply(HttpExchange exchange, int status, String contentType, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,397 @@
+
+package polyfromimagecombinedspring;
+
+import java.awt.geom.Line2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.function.IntConsumer;
+
+/**
+ * A two level visibility graph for big maps. The coarse level is made from
+ * a few simple obstacles: polygons that are close together are merged, and
+ * each merged group becomes the rectangle around it. The fine level is the
+ * full resolution polygons. Each coarse obstacle is linked to the fine
+ * polygons it was made from. Both levels are LazyVisibilityGraphs, so the
+ * edges of a node are only worked out when a search reaches it, and
+ * neither level is ever built for the whole map unless buildCoarseGraph
+ * is asked for.
+ *
+ * A query is planned on the coarse graph first. Then only the fine
+ * polygons near the coarse path (within the corridor width) are used to
+ * make a LazyVisibilityGraph, whose edges are only worked out for the
+ * nodes the search reaches, and the path is planned again on that. The
+ * path is checked against every fine polygon, and if it runs into one
+ * that was left out, that polygon is added and the path is planned again.
+ * The bounding boxes of the fine polygons are kept in a uniform grid, and
+ * both of these steps only look at the grid cells along the path, so the
+ * work done on the fine level grows with the number of obstacles along the
+ * route, not with the size of the map. Only the coarse level, which is much
+ * smaller, is searched as a whole.
+ *
+ * If the coarse graph has no path, for example because the start is inside
+ * a merged rectangle, the straight line from the start to the goal is used
+ * as the corridor instead. The refined path never crosses a fine polygon,
+ * but it is only the shortest path among the polygons in the corridor, so
+ * it can be a little longer than a path over the full graph.
+ */
+public class HierarchicalGraph {
+
+    // on maps with many small, scattered obstacles, a bigger merge distance
+    // keeps the coarse level much smaller than the fine one.
+    public static final double DEFAULT_MERGE_DISTANCE = 20;
+    public static final double DEFAULT_CORRIDOR_WIDTH = 40;
+
+    // how much to grow cells and boxes by so that touching lines are never missed.
+    private static final double EPS = 1e-7;
+    // the most cells the grid will have along one axis.
+    private static final int MAX_CELLS_PER_AXIS = 1024;
+
+    /**
+     * What one refined query found.
+     */
+    public static class Refinement {
+        // the paths, stored as x, y for each point from the start to the goal.
+        public double[] path, coarsePath;
+        // the fine polygons the path was planned around.
+        public ArrayList<Integer> polygons = new ArrayList<>();
+        public int rounds;
+        public int expandedNodes;
+    }
+
+    private final ArrayList<ArrayList<SimplePoint>> finePolys;
+    private final ArrayList<ArrayList<SimplePoint>> coarsePolys = new ArrayList<>();
+    private final int[] coarseOfFine;
+    private final ArrayList<int[]> fineOfCoarse = new ArrayList<>();
+    // the bounding box of each fine polygon: minX, minY, maxX, maxY.
+    private final double[][] fineBoxes;
+    private final LazyVisibilityGraph coarseGraph;
+    private final PathPlanner coarsePlanner;
+    private final double polygon_padding_scale;
+    private final int boundary_top, boundary_bottom, boundary_left, boundary_right;
+    private final double corridorWidth;
+
+    // the grid over the boxes of the fine polygons.
+    private final double originX, originY, cellSize;
+    private final int cols, rows;
+    // cellStart[c] to cellStart[c + 1] are the entries in cellPolys for cell c.
+    private final int[] cellStart;
+    private final int[] cellPolys;
+
+    /**
+     * Build the coarse level of a map.
+     * @param inputPolys The full resolution polygons (not padded)
+     * @param polygon_padding_scale How much to scale each polygon by, at both levels
+     * @param boundary_top
+     * @param boundary_bottom
+     * @param boundary_left
+     * @param boundary_right
+     * @param mergeDistance Polygons whose bounding boxes are closer than this are merged
+     * @param corridorWidth How far from the coarse path fine polygons are used
+     */
+    public HierarchicalGraph(ArrayList<ArrayList<SimplePoint>> inputPolys, double polygon_padding_scale,
+            int boundary_top, int boundary_bottom, int boundary_left, int boundary_right,
+            double mergeDistance, double corridorWidth) {
+        this.finePolys = inputPolys;
+        this.polygon_padding_scale = polygon_padding_scale;
+        this.boundary_top = boundary_top;
+        this.boundary_bottom = boundary_bottom;
+        this.boundary_left = boundary_left;
+        this.boundary_right = boundary_right;
+        this.corridorWidth = corridorWidth;
+
+        int n = inputPolys.size();
+        fineBoxes = new double[n][];
+        for (int i = 0; i < n; i++) {
+            double[] box = { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+            for (SimplePoint p : inputPolys.get(i)) {
+                box[0] = Math.min(box[0], p.x);
+                box[1] = Math.min(box[1], p.y);
+                box[2] = Math.max(box[2], p.x);
+                box[3] = Math.max(box[3], p.y);
+            }
+            fineBoxes[i] = box;
+        }
+
+        // put the boxes in a grid with about one polygon in each cell.
+        double allMinX = Double.MAX_VALUE, allMinY = Double.MAX_VALUE;
+        double allMaxX = -Double.MAX_VALUE, allMaxY = -Double.MAX_VALUE;
+        for (double[] box : fineBoxes) {
+            allMinX = Math.min(allMinX, box[0]);
+            allMinY = Math.min(allMinY, box[1]);
+            allMaxX = Math.max(allMaxX, box[2]);
+            allMaxY = Math.max(allMaxY, box[3]);
+        }
+        if (n == 0) {
+            allMinX = allMinY = allMaxX = allMaxY = 0;
+        }
+        double width = Math.max(allMaxX - allMinX, 1);
+        double height = Math.max(allMaxY - allMinY, 1);
+        double size = Math.sqrt((width * height) / Math.max(n, 1));
+        size = Math.max(size, Math.max(width, height) / MAX_CELLS_PER_AXIS);
+        originX = allMinX - EPS;
+        originY = allMinY - EPS;
+        cellSize = size;
+        cols = Math.max(1, (int)Math.ceil((width + 2 * EPS) / size));
+        rows = Math.max(1, (int)Math.ceil((height + 2 * EPS) / size));
+        int[] counts = new int[(cols * rows) + 1];
+        for (int i = 0; i < n; i++)
+            forEachCell(fineBoxes[i], (cell) -> counts[cell + 1]++);
+        for (int c = 0; c < cols * rows; c++)
+            counts[c + 1] += counts[c];
+        cellStart = counts.clone();
+        cellPolys = new int[counts[cols * rows]];
+        for (int i = 0; i < n; i++) {
+            final int poly = i;
+            forEachCell(fineBoxes[i], (cell) -> cellPolys[counts[cell]++] = poly);
+        }
+
+        // merge the polygons whose boxes are close, sweeping along x.
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++)
+            parent[i] = i;
+        Integer[] byMinX = new Integer[n];
+        for (int i = 0; i < n; i++)
+            byMinX[i] = i;
+        Arrays.sort(byMinX, Comparator.comparingDouble(i -> fineBoxes[i][0]));
+        for (int a = 0; a < n; a++) {
+            double[] boxA = fineBoxes[byMinX[a]];
+            for (int b = a + 1; b < n && fineBoxes[byMinX[b]][0] <= boxA[2] + mergeDistance; b++) {
+                double[] boxB = fineBoxes[byMinX[b]];
+                if (boxB[1] <= boxA[3] + mergeDistance && boxA[1] <= boxB[3] + mergeDistance)
+                    parent[find(parent, byMinX[a])] = find(parent, byMinX[b]);
+            }
+        }
+
+        // each merged group becomes the rectangle around it.
+        coarseOfFine = new int[n];
+        int[] coarseOfRoot = new int[n];
+        Arrays.fill(coarseOfRoot, -1);
+        ArrayList<ArrayList<Integer>> members = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int root = find(parent, i);
+            if (coarseOfRoot[root] < 0) {
+                coarseOfRoot[root] = members.size();
+                members.add(new ArrayList<>());
+            }
+            coarseOfFine[i] = coarseOfRoot[root];
+            members.get(coarseOfFine[i]).add(i);
+        }
+        for (ArrayList<Integer> group : members) {
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            int[] fine = new int[group.size()];
+            for (int k = 0; k < fine.length; k++) {
+                fine[k] = group.get(k);
+                double[] box = fineBoxes[fine[k]];
+                minX = Math.min(minX, box[0]);
+                minY = Math.min(minY, box[1]);
+                maxX = Math.max(maxX, box[2]);
+                maxY = Math.max(maxY, box[3]);
+            }
+            ArrayList<SimplePoint> rectangle = new ArrayList<>();
+            rectangle.add(new SimplePoint(minX, minY));
+            rectangle.add(new SimplePoint(maxX, minY));
+            rectangle.add(new SimplePoint(maxX, maxY));
+            rectangle.add(new SimplePoint(minX, maxY));
+            coarsePolys.add(rectangle);
+            fineOfCoarse.add(fine);
+        }
+        coarseGraph = new LazyVisibilityGraph(coarsePolys, polygon_padding_scale,
+                boundary_top, boundary_bottom, boundary_left, boundary_right);
+        coarsePlanner = new PathPlanner(coarseGraph, new SegmentIndex(coarsePolys), 0);
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * The coarse graph, with the edges the queries so far have worked out.
+     * @return
+     */
+    public AdjacencyGraph getCoarseGraph() {
+        return coarseGraph;
+    }
+
+    /**
+     * Build the whole coarse graph, for example to save it. This tests
+     * every pair of coarse nodes, so it costs as much as polygonsToGraph on
+     * the coarse obstacles.
+     * @return
+     */
+    public SimpleGraph buildCoarseGraph() {
+        return GeometricOperations.polygonsToGraph(coarsePolys, polygon_padding_scale,
+                boundary_top, boundary_bottom, boundary_left, boundary_right);
+    }
+
+    /**
+     * The coarse obstacles, one rectangle for each merged group of polygons.
+     * @return
+     */
+    public ArrayList<ArrayList<SimplePoint>> getCoarsePolygons() {
+        return coarsePolys;
+    }
+
+    /**
+     * The fine polygons a coarse obstacle was made from.
+     * @param coarse The index of the coarse obstacle
+     * @return The indices of the fine polygons.
+     */
+    public int[] finePolygonsOf(int coarse) {
+        return fineOfCoarse.get(coarse);
+    }
+
+    /**
+     * The coarse obstacle a fine polygon was merged into.
+     * @param fine The index of the fine polygon
+     * @return
+     */
+    public int coarsePolygonOf(int fine) {
+        return coarseOfFine[fine];
+    }
+
+    /**
+     * Plan a path on the coarse graph, then refine it with the full
+     * resolution polygons along it.
+     * @param startX
+     * @param startY
+     * @param goalX
+     * @param goalY
+     * @return The refined path, and what it took. The path is null if the goal can't be reached.
+     */
+    public Refinement refine(double startX, double startY, double goalX, double goalY) {
+        Refinement refinement = new Refinement();
+        refinement.coarsePath = coarsePlanner.plan(startX, startY, goalX, goalY);
+        double[] corridor = (refinement.coarsePath != null) ? refinement.coarsePath :
+                new double[] { startX, startY, goalX, goalY };
+        HashSet<Integer> used = new HashSet<>();
+        for (int i : polygonsNear(corridor, corridorWidth)) {
+            if (nearPath(i, corridor, corridorWidth)) {
+                used.add(i);
+                refinement.polygons.add(i);
+            }
+        }
+
+        while (true) {
+            refinement.rounds++;
+            ArrayList<ArrayList<SimplePoint>> polys = new ArrayList<>();
+            for (int i : refinement.polygons)
+                polys.add(finePolys.get(i));
+            LazyVisibilityGraph fineGraph = new LazyVisibilityGraph(polys, polygon_padding_scale,
+                    boundary_top, boundary_bottom, boundary_left, boundary_right);
+            refinement.path = new PathPlanner(fineGraph, new SegmentIndex(polys), 0).plan(startX, startY, goalX, goalY);
+            refinement.expandedNodes += fineGraph.expandedCount();
+            if (refinement.path == null)
+                return refinement;
+
+            // add the polygons the path runs into, and try again.
+            boolean blocked = false;
+            for (int i : polygonsNear(refinement.path, 1)) {
+                if (!used.contains(i) && pathCollides(i, refinement.path)) {
+                    used.add(i);
+                    refinement.polygons.add(i);
+                    blocked = true;
+                }
+            }
+            if (!blocked)
+                return refinement;
+        }
+    }
+
+    /**
+     * Find the fine polygons in the grid cells within a distance of a path.
+     * Every polygon whose box, grown by the distance, touches the path is
+     * among them, along with some that are only near it.
+     * @return The polygons, in increasing order.
+     */
+    private int[] polygonsNear(double[] path, double distance) {
+        HashSet<Integer> found = new HashSet<>();
+        for (int k = 0; k + 3 < path.length; k += 2) {
+            double x0 = path[k], y0 = path[k + 1], x1 = path[k + 2], y1 = path[k + 3];
+            if (x1 < x0) {
+                double t = x0; x0 = x1; x1 = t;
+                t = y0; y0 = y1; y1 = t;
+            }
+            int startCol = clamp((int)Math.floor((x0 - distance - EPS - originX) / cellSize), cols);
+            int endCol = clamp((int)Math.floor((x1 + distance + EPS - originX) / cellSize), cols);
+            for (int c = startCol; c <= endCol; c++) {
+                // the part of the line that is within the distance of this column.
+                double low = Math.max(x0, originX + (c * cellSize) - distance);
+                double high = Math.min(x1, originX + ((c + 1) * cellSize) + distance);
+                double yA = y0, yB = y1;
+                if (x1 > x0 && low <= high) {
+                    yA = y0 + (((low - x0) / (x1 - x0)) * (y1 - y0));
+                    yB = y0 + (((high - x0) / (x1 - x0)) * (y1 - y0));
+                }
+                int startRow = clamp((int)Math.floor((Math.min(yA, yB) - distance - EPS - originY) / cellSize), rows);
+                int endRow = clamp((int)Math.floor((Math.max(yA, yB) + distance + EPS - originY) / cellSize), rows);
+                for (int r = startRow; r <= endRow; r++) {
+                    int cell = (r * cols) + c;
+                    for (int e = cellStart[cell]; e < cellStart[cell + 1]; e++)
+                        found.add(cellPolys[e]);
+                }
+            }
+        }
+        int[] polys = new int[found.size()];
+        int used = 0;
+        for (int i : found)
+            polys[used++] = i;
+        Arrays.sort(polys);
+        return polys;
+    }
+
+    // the cells a box touches.
+    private void forEachCell(double[] box, IntConsumer visitor) {
+        int startCol = clamp((int)Math.floor((box[0] - EPS - originX) / cellSize), cols);
+        int endCol = clamp((int)Math.floor((box[2] + EPS - originX) / cellSize), cols);
+        int startRow = clamp((int)Math.floor((box[1] - EPS - originY) / cellSize), rows);
+        int endRow = clamp((int)Math.floor((box[3] + EPS - originY) / cellSize), rows);
+        for (int r = startRow; r <= endRow; r++) {
+            for (int c = startCol; c <= endCol; c++)
+                visitor.accept((r * cols) + c);
+        }
+    }
+
+    private static int clamp(int cell, int numCells) {
+        return Math.max(0, Math.min(numCells - 1, cell));
+    }
+
+    /**
+     * Whether the bounding box of a fine polygon, grown by a distance,
+     * touches a path.
+     */
+    private boolean nearPath(int poly, double[] path, double distance) {
+        double[] box = fineBoxes[poly];
+        for (int k = 0; k + 3 < path.length; k += 2) {
+            if (new Line2D.Double(path[k], path[k + 1], path[k + 2], path[k + 3]).intersects(
+                    box[0] - distance, box[1] - distance,
+                    box[2] - box[0] + 2 * distance, box[3] - box[1] + 2 * distance))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether a path crosses the edges of a fine polygon.
+     */
+    private boolean pathCollides(int poly, double[] path) {
+        // the box is grown a little, since a flat polygon's box has no area.
+        if (!nearPath(poly, path, 1))
+            return false;
+        ArrayList<ArrayList<SimplePoint>> single = new ArrayList<>();
+        single.add(finePolys.get(poly));
+        for (int k = 0; k + 3 < path.length; k += 2) {
+            SimpleEdge line = new SimpleEdge(new SimpleNode(path[k], path[k + 1]),
+                    new SimpleNode(path[k + 2], path[k + 3]), 0);
+            if (GeometricOperations.lineCollidesPolys(line, single))
+                return true;
+        }
+        return false;
+    }
+}
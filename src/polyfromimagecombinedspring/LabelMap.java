@@ -0,0 +1,53 @@
+
+package polyfromimagecombinedspring;
+
+/**
+ * The cluster label of each pixel of an image, one byte per pixel, in one
+ * flat array in row-major order (the same order as BufferedImage.getRGB).
+ * Labels go from 0 to MAX_LABELS - 1.
+ *
+ * Passes over every pixel should walk the array with getData, a row at a
+ * time, rather than calling get for each pixel.
+ */
+public class LabelMap {
+
+    public static final int MAX_LABELS = 256;
+
+    private final int width, height;
+    private final byte[] labels;
+
+    /**
+     * Make a label map with every label 0.
+     * @param width
+     * @param height
+     */
+    public LabelMap(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.labels = new byte[width * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int get(int x, int y) {
+        return labels[(y * width) + x] & 0xFF;
+    }
+
+    public void set(int x, int y, int label) {
+        labels[(y * width) + x] = (byte)label;
+    }
+
+    /**
+     * The labels themselves, row-major. Read each one with & 0xFF.
+     * @return
+     */
+    public byte[] getData() {
+        return labels;
+    }
+}
@@ -0,0 +1,129 @@
+
+package polyfromimagecombinedspring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The same visibility graph as GeometricOperations.polygonsToGraph, but
+ * the edges of a node are only worked out the first time something asks
+ * for them. The nodes are made up front, in the same order polygonsToGraph
+ * uses (the four corners, then the padded polygon points), so a search that
+ * only expands a few nodes only pays for the collision tests of those nodes.
+ *
+ * Once a node's neighbours are found they are kept, so asking again is
+ * free. Several threads can search the graph at once; if two of them expand
+ * the same node at the same time, both work out the same neighbours and
+ * only one copy is kept.
+ */
+public class LazyVisibilityGraph implements AdjacencyGraph {
+
+    private final double[] nodeX, nodeY;
+    private final SegmentIndex segmentIndex;
+    // the neighbours of each node, or null until the node is first expanded.
+    private final AtomicReferenceArray<int[]> neighbours;
+
+    /**
+     * Make the nodes of the visibility graph, without testing any edges.
+     * @param inputPolys The polygons that are the obstacles
+     * @param polygon_padding_scale How much to scale each polygon by
+     * @param boundary_top
+     * @param boundary_bottom
+     * @param boundary_left
+     * @param boundary_right
+     */
+    public LazyVisibilityGraph(ArrayList<ArrayList<SimplePoint>> inputPolys, double polygon_padding_scale, int boundary_top, int boundary_bottom, int boundary_left, int boundary_right) {
+        ArrayList<SimplePoint> points = new ArrayList<>();
+        for (ArrayList<SimplePoint> paddedPoly : GeometricOperations.padPolygons(inputPolys, polygon_padding_scale))
+            points.addAll(paddedPoly);
+        int n = points.size() + 4;
+        nodeX = new double[n];
+        nodeY = new double[n];
+        // the four corners of the map
+        nodeX[0] = boundary_left;  nodeY[0] = boundary_top;
+        nodeX[1] = boundary_left;  nodeY[1] = boundary_bottom;
+        nodeX[2] = boundary_right; nodeY[2] = boundary_top;
+        nodeX[3] = boundary_right; nodeY[3] = boundary_bottom;
+        for (int i = 0; i < points.size(); i++) {
+            nodeX[i + 4] = points.get(i).x;
+            nodeY[i + 4] = points.get(i).y;
+        }
+        segmentIndex = new SegmentIndex(inputPolys);
+        neighbours = new AtomicReferenceArray<>(n);
+    }
+
+    @Override
+    public int nodeCount() {
+        return nodeX.length;
+    }
+
+    @Override
+    public double x(int node) {
+        return nodeX[node];
+    }
+
+    @Override
+    public double y(int node) {
+        return nodeY[node];
+    }
+
+    @Override
+    public int degree(int node) {
+        return neighboursOf(node).length;
+    }
+
+    @Override
+    public int neighbour(int node, int k) {
+        return neighboursOf(node)[k];
+    }
+
+    @Override
+    public double weight(int node, int k) {
+        int other = neighboursOf(node)[k];
+        double diffX = nodeX[other] - nodeX[node];
+        double diffY = nodeY[other] - nodeY[node];
+        return Math.sqrt((diffX * diffX) + (diffY * diffY));
+    }
+
+    /**
+     * The number of nodes whose neighbours have been worked out so far.
+     * @return
+     */
+    public int expandedCount() {
+        int count = 0;
+        for (int i = 0; i < neighbours.length(); i++) {
+            if (neighbours.get(i) != null)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Get the neighbours of a node, testing the line to every other node
+     * the first time it is asked for.
+     */
+    private int[] neighboursOf(int node) {
+        int[] found = neighbours.get(node);
+        if (found != null)
+            return found;
+        int[] visible = new int[16];
+        int used = 0;
+        for (int j = 0; j < nodeX.length; j++) {
+            if (j == node)
+                continue;
+            // test the pair with the lower index first, as polygonsToGraph does.
+            int a = Math.min(node, j);
+            int b = Math.max(node, j);
+            if (!segmentIndex.lineCollides(nodeX[a], nodeY[a], nodeX[b], nodeY[b])) {
+                if (used == visible.length)
+                    visible = Arrays.copyOf(visible, used * 2);
+                visible[used++] = j;
+            }
+        }
+        found = Arrays.copyOf(visible, used);
+        if (!neighbours.compareAndSet(node, null, found))
+            found = neighbours.get(node);
+        return found;
+    }
+}
@@ -0,0 +1,109 @@
+
+package polyfromimagecombinedspring;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the node positions of a graph, used to find the
+ * nodes near a point without looking at every node. Like SegmentIndex, the
+ * cells are stored in one flat array, and the grid is never modified after
+ * it is built.
+ */
+public class NodeGrid {
+
+    // the most cells the grid will have along one axis.
+    private static final int MAX_CELLS_PER_AXIS = 1024;
+
+    private final AdjacencyGraph graph;
+    private final double originX, originY, cellSize;
+    private final int cols, rows;
+    // cellStart[c] to cellStart[c + 1] are the entries in cellNodes for cell c.
+    private final int[] cellStart;
+    private final int[] cellNodes;
+
+    /**
+     * Build a grid over the nodes of a graph.
+     * @param graph The graph whose nodes are indexed
+     */
+    public NodeGrid(AdjacencyGraph graph) {
+        this.graph = graph;
+        int n = graph.nodeCount();
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, graph.x(i));
+            minY = Math.min(minY, graph.y(i));
+            maxX = Math.max(maxX, graph.x(i));
+            maxY = Math.max(maxY, graph.y(i));
+        }
+        if (n == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+
+        // aim for about one node per cell.
+        double width = Math.max(maxX - minX, 1);
+        double height = Math.max(maxY - minY, 1);
+        double size = Math.sqrt((width * height) / Math.max(n, 1));
+        size = Math.max(size, Math.max(width, height) / MAX_CELLS_PER_AXIS);
+        originX = minX;
+        originY = minY;
+        cellSize = size;
+        cols = Math.max(1, (int)Math.floor(width / size) + 1);
+        rows = Math.max(1, (int)Math.floor(height / size) + 1);
+
+        int[] counts = new int[(cols * rows) + 1];
+        for (int i = 0; i < n; i++)
+            counts[cellOf(graph.x(i), graph.y(i)) + 1]++;
+        for (int c = 0; c < cols * rows; c++)
+            counts[c + 1] += counts[c];
+        cellStart = counts.clone();
+        cellNodes = new int[n];
+        for (int i = 0; i < n; i++)
+            cellNodes[counts[cellOf(graph.x(i), graph.y(i))]++] = i;
+    }
+
+    /**
+     * Find the nodes within the given distance of a point.
+     * @param x
+     * @param y
+     * @param radius
+     * @return The nodes, in increasing order.
+     */
+    public int[] nodesWithin(double x, double y, double radius) {
+        int startCol = clamp((int)Math.floor((x - radius - originX) / cellSize), cols);
+        int endCol = clamp((int)Math.floor((x + radius - originX) / cellSize), cols);
+        int startRow = clamp((int)Math.floor((y - radius - originY) / cellSize), rows);
+        int endRow = clamp((int)Math.floor((y + radius - originY) / cellSize), rows);
+        int[] found = new int[16];
+        int used = 0;
+        double radiusSq = radius * radius;
+        for (int r = startRow; r <= endRow; r++) {
+            for (int c = startCol; c <= endCol; c++) {
+                int cell = (r * cols) + c;
+                for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                    int node = cellNodes[k];
+                    double diffX = graph.x(node) - x;
+                    double diffY = graph.y(node) - y;
+                    if ((diffX * diffX) + (diffY * diffY) <= radiusSq) {
+                        if (used == found.length)
+                            found = Arrays.copyOf(found, used * 2);
+                        found[used++] = node;
+                    }
+                }
+            }
+        }
+        found = Arrays.copyOf(found, used);
+        Arrays.sort(found);
+        return found;
+    }
+
+    private int cellOf(double x, double y) {
+        int c = clamp((int)Math.floor((x - originX) / cellSize), cols);
+        int r = clamp((int)Math.floor((y - originY) / cellSize), rows);
+        return (r * cols) + c;
+    }
+
+    private static int clamp(int cell, int numCells) {
+        return Math.max(0, Math.min(numCells - 1, cell));
+    }
+}
@@ -0,0 +1,166 @@
+
+package polyfromimagecombinedspring;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes and writes the output files on background threads, so the
+ * caller can go on with the next image while the PNGs are compressed.
+ * Jobs wait in a bounded queue. When it is full the caller writes the job
+ * itself, which stops finished images from piling up in memory faster
+ * than they can be written.
+ *
+ * Everything handed to the writer must not be changed afterwards. A job
+ * that fails is reported on System.err and counted; it doesn't stop the
+ * other jobs.
+ */
+public class OutputWriter {
+
+    /**
+     * A job that writes one or more files.
+     */
+    public interface WriteJob {
+        void write() throws IOException;
+    }
+
+    /**
+     * The formats the debug images can be written in. BMP is not
+     * compressed, so it is the fastest to write but the biggest.
+     */
+    public enum ImageFormat {
+        PNG("png"), BMP("bmp");
+
+        private final String extension;
+
+        ImageFormat(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final AtomicInteger failures = new AtomicInteger();
+    private ImageFormat debugFormat = ImageFormat.PNG;
+    private int debugPngLevel = -1;
+
+    /**
+     * Make a writer.
+     * @param numThreads The number of files to write at once
+     * @param queueSize The number of jobs that can wait before the caller has to write them itself
+     */
+    public OutputWriter(int numThreads, int queueSize) {
+        pool = new ThreadPoolExecutor(Math.max(1, numThreads), Math.max(1, numThreads),
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Choose how the debug images are written.
+     * @param format The file format
+     * @param pngLevel The deflate level for PNGs from 0 (none, fastest) to 9 (smallest), or -1 for the default
+     */
+    public void setDebugImageFormat(ImageFormat format, int pngLevel) {
+        if (pngLevel < -1 || pngLevel > 9)
+            throw new IllegalArgumentException("PNG level must be from 0 to 9, or -1");
+        this.debugFormat = format;
+        this.debugPngLevel = pngLevel;
+    }
+
+    public ImageFormat getDebugImageFormat() {
+        return debugFormat;
+    }
+
+    /**
+     * The number of jobs that have failed so far.
+     * @return
+     */
+    public int getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Write a job on a background thread, or on this thread if the queue is full.
+     * @param description What the job writes, for the error message if it fails
+     * @param job The job
+     */
+    public void submit(String description, WriteJob job) {
+        pool.execute(() -> {
+            try {
+                job.write();
+            } catch (IOException | RuntimeException e) {
+                failures.incrementAndGet();
+                System.err.println("Error writing " + description + ": " + e);
+            }
+        });
+    }
+
+    /**
+     * Write an image as a PNG at the default deflate level.
+     * @param image
+     * @param file
+     */
+    public void writeImage(BufferedImage image, File file) {
+        submit(file.getName(), () -> encode(image, ImageFormat.PNG, -1, file));
+    }
+
+    /**
+     * Write a debug image in the format chosen with setDebugImageFormat.
+     * The file should have the extension of that format.
+     * @param image
+     * @param file
+     */
+    public void writeDebugImage(BufferedImage image, File file) {
+        ImageFormat format = debugFormat;
+        int level = debugPngLevel;
+        submit(file.getName(), () -> encode(image, format, level, file));
+    }
+
+    /**
+     * Wait for every job to be written, and stop the threads.
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        pool.shutdown();
+        while (!pool.awaitTermination(1, TimeUnit.MINUTES))
+            System.err.println("Still writing output files...");
+    }
+
+    private static void encode(BufferedImage image, ImageFormat format, int pngLevel, File file) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format.getExtension());
+        if (!writers.hasNext())
+            throw new IOException("No image writer for " + format);
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (format == ImageFormat.PNG && pngLevel >= 0 && param.canWriteCompressed()) {
+            // the PNG writer uses deflate level 9 * (1 - quality), rounded down.
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(Math.max(0f, 1f - ((pngLevel + 0.5f) / 9f)));
+        }
+        // the stream doesn't cut off an old file that is longer than the new one.
+        Files.deleteIfExists(file.toPath());
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            if (out == null)
+                throw new IOException("Can't open " + file);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
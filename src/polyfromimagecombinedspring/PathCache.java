@@ -0,0 +1,153 @@
+
+package polyfromimagecombinedspring;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of planned paths, in front of a PathPlanner. Start and
+ * goal points are snapped to a grid, so queries from nearly the same place
+ * to nearly the same place share one entry, and the key also holds the
+ * planner's version. Every planner has a version of its own, so one cache
+ * can sit in front of many planners at once (for different maps, say),
+ * and a path found on an old graph is never returned for a new one. The
+ * paths of a planner that was replaced are never asked for again, so they
+ * drop out as the least recently used paths are removed once the cache is
+ * full, or straight away with invalidate.
+ *
+ * A cached path is the one found for the first query in its grid cells, so
+ * its ends can be up to one grid cell away from the points asked for. The
+ * returned arrays are shared between callers and must not be changed.
+ * The cache can be used by many threads at once.
+ */
+public class PathCache {
+
+    // stored for queries with no path, since null means "not cached".
+    private static final double[] NO_PATH = new double[0];
+
+    private final double gridSize;
+    private final LinkedHashMap<Key, double[]> paths;
+    private long hits = 0, misses = 0;
+
+    /**
+     * Make an empty cache.
+     * @param gridSize The size of the grid cells the points are snapped to
+     * @param maxEntries The most paths to keep
+     */
+    public PathCache(double gridSize, int maxEntries) {
+        if (gridSize <= 0 || maxEntries <= 0)
+            throw new IllegalArgumentException("Grid size and max entries must be positive");
+        this.gridSize = gridSize;
+        // access order, so the eldest entry is the least recently used one.
+        this.paths = new LinkedHashMap<Key, double[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Find the path from one point to another, using the cached one if
+     * there is one for the same grid cells and planner.
+     * @param planner The planner for the current graph
+     * @param startX
+     * @param startY
+     * @param goalX
+     * @param goalY
+     * @return The path, stored as x, y for each point from the start to the goal,
+     *         or null if the goal can't be reached.
+     */
+    public double[] plan(PathPlanner planner, double startX, double startY, double goalX, double goalY) {
+        Key key = new Key(planner.getVersion(), cell(startX), cell(startY), cell(goalX), cell(goalY));
+        double[] path = lookup(key);
+        if (path == null) {
+            // plan without holding the lock, so other queries aren't held up.
+            path = planner.plan(startX, startY, goalX, goalY);
+            if (path == null)
+                path = NO_PATH;
+            store(key, path);
+        }
+        return (path == NO_PATH) ? null : path;
+    }
+
+    private synchronized double[] lookup(Key key) {
+        double[] path = paths.get(key);
+        if (path == null)
+            misses++;
+        else
+            hits++;
+        return path;
+    }
+
+    private synchronized void store(Key key, double[] path) {
+        paths.put(key, path);
+    }
+
+    /**
+     * Drop the paths of one planner, such as one whose graph was rebuilt,
+     * and leave the paths of every other planner.
+     * @param planner
+     */
+    public synchronized void invalidate(PathPlanner planner) {
+        long version = planner.getVersion();
+        for (Iterator<Key> keys = paths.keySet().iterator(); keys.hasNext(); ) {
+            if (keys.next().version == version)
+                keys.remove();
+        }
+    }
+
+    private long cell(double value) {
+        return (long)Math.floor(value / gridSize);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return paths.size();
+    }
+
+    public synchronized void clear() {
+        paths.clear();
+    }
+
+    private static final class Key {
+
+        final long version;
+        final long startX, startY, goalX, goalY;
+
+        Key(long version, long startX, long startY, long goalX, long goalY) {
+            this.version = version;
+            this.startX = startX;
+            this.startY = startY;
+            this.goalX = goalX;
+            this.goalY = goalY;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key)obj;
+            return version == other.version && startX == other.startX && startY == other.startY &&
+                    goalX == other.goalX && goalY == other.goalY;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = version;
+            hash = (hash * 31) + startX;
+            hash = (hash * 31) + startY;
+            hash = (hash * 31) + goalX;
+            hash = (hash * 31) + goalY;
+            return (int)(hash ^ (hash >>> 32));
+        }
+    }
+}
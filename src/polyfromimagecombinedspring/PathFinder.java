@@ -0,0 +1,318 @@
+
+package polyfromimagecombinedspring;
+
+import java.util.Arrays;
+
+/**
+ * Finds shortest paths over an AdjacencyGraph with A* (using the straight
+ * line distance to the goal as the heuristic) or Dijkstra's algorithm.
+ *
+ * The graph is only read, never changed, and the cost, parent and heap
+ * arrays of a search come from a pool kept for each thread. So any number
+ * of threads can run queries against one graph at once, and after the
+ * first query on a thread a search allocates nothing except the path it
+ * returns. The arrays are not cleared between searches; each search gets a
+ * new stamp, and an entry only counts if it carries the current stamp.
+ */
+public class PathFinder {
+
+    // the edge weights of a CsrGraph are floats, so an edge can be a little
+    // shorter than the straight line between its ends. Shrinking the
+    // heuristic by this much keeps it from ever overestimating.
+    private static final double HEURISTIC_SCALE = 1 - 1e-6;
+
+    private static final ThreadLocal<SearchState> STATES = ThreadLocal.withInitial(SearchState::new);
+
+    private final AdjacencyGraph graph;
+
+    public PathFinder(AdjacencyGraph graph) {
+        this.graph = graph;
+    }
+
+    public AdjacencyGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * The length of the shortest path from start to goal, found with A*.
+     * @param start
+     * @param goal
+     * @return The path length, or infinity if the goal can't be reached.
+     */
+    public double aStarDistance(int start, int goal) {
+        return search(start, goal, true).costOf(goal);
+    }
+
+    /**
+     * The shortest path from start to goal, found with A*.
+     * @param start
+     * @param goal
+     * @return The nodes on the path, from start to goal, or null if the goal can't be reached.
+     */
+    public int[] aStarPath(int start, int goal) {
+        return search(start, goal, true).pathTo(goal);
+    }
+
+    /**
+     * The length of the shortest path from start to goal, found with
+     * Dijkstra's algorithm.
+     * @param start
+     * @param goal
+     * @return The path length, or infinity if the goal can't be reached.
+     */
+    public double dijkstraDistance(int start, int goal) {
+        return search(start, goal, false).costOf(goal);
+    }
+
+    /**
+     * The shortest path from start to goal, found with Dijkstra's algorithm.
+     * @param start
+     * @param goal
+     * @return The nodes on the path, from start to goal, or null if the goal can't be reached.
+     */
+    public int[] dijkstraPath(int start, int goal) {
+        return search(start, goal, false).pathTo(goal);
+    }
+
+    /**
+     * Find the shortest paths from start to each of the targets with one
+     * run of Dijkstra's algorithm, which stops as soon as every target is 
+     * settled.
+     * @param start
+     * @param targets The nodes to find paths to (they may repeat)
+     * @param costs Filled with the path length to each target, or infinity if it can't be reached
+     * @param paths If not null, filled with the nodes on the path to each target, or null if it can't be reached
+     */
+    public void dijkstraToMany(int start, int[] targets, double[] costs, int[][] paths) {
+        SearchState state = STATES.get();
+        state.reset(graph.nodeCount());
+        int remaining = state.markTargets(targets);
+
+        state.relax(start, -1, 0, 0);
+        while (!state.heapIsEmpty() && remaining > 0) {
+            int node = state.pop();
+            if (state.isTarget(node))
+                remaining--;
+            double nodeCost = state.cost[node];
+            int degree = graph.degree(node);
+            for (int k = 0; k < degree; k++) {
+                int other = graph.neighbour(node, k);
+                if (state.isClosed(other))
+                    continue;
+                double newCost = nodeCost + graph.weight(node, k);
+                if (!state.isSeen(other) || newCost < state.cost[other])
+                    state.relax(other, node, newCost, newCost);
+            }
+        }
+        for (int t = 0; t < targets.length; t++) {
+            boolean reached = state.isClosed(targets[t]);
+            costs[t] = reached ? state.cost[targets[t]] : Double.POSITIVE_INFINITY;
+            if (paths != null)
+                paths[t] = reached ? state.pathTo(targets[t]) : null;
+        }
+    }
+    
+    /**
+     * Run one search on this thread's state, stopping once the goal is
+     * settled.
+     */
+    private SearchState search(int start, int goal, boolean useHeuristic) {
+        SearchState state = STATES.get();
+        state.reset(graph.nodeCount());
+        double goalX = graph.x(goal);
+        double goalY = graph.y(goal);
+
+        state.relax(start, -1, 0, useHeuristic ? heuristic(start, goalX, goalY) : 0);
+        while (!state.heapIsEmpty()) {
+            int node = state.pop();
+            if (node == goal)
+                break;
+            double nodeCost = state.cost[node];
+            int degree = graph.degree(node);
+            for (int k = 0; k < degree; k++) {
+                int other = graph.neighbour(node, k);
+                if (state.isClosed(other))
+                    continue;
+                double newCost = nodeCost + graph.weight(node, k);
+                if (!state.isSeen(other) || newCost < state.cost[other]) {
+                    double estimate = useHeuristic ? heuristic(other, goalX, goalY) : 0;
+                    state.relax(other, node, newCost, newCost + estimate);
+                }
+            }
+        }
+        return state;
+    }
+
+    private double heuristic(int node, double goalX, double goalY) {
+        double diffX = goalX - graph.x(node);
+        double diffY = goalY - graph.y(node);
+        return Math.sqrt((diffX * diffX) + (diffY * diffY)) * HEURISTIC_SCALE;
+    }
+
+    /**
+     * The arrays for one search: path costs, parents, and an indexed binary
+     * heap of the open nodes, keyed by cost (plus the heuristic for A*).
+     */
+    static class SearchState {
+
+        double[] cost = new double[0];
+        int[] parent = new int[0];
+        // a node has been reached in this search when seen[node] == stamp,
+        // and settled when closed[node] == stamp.
+        int[] seen = new int[0];
+        int[] closed = new int[0];
+        // the nodes a many target search is looking for have target[node] == stamp.
+        int[] target = new int[0];
+        int stamp = 0;
+
+        // the heap holds node ids; heapIndex[node] is where a node sits in it.
+        int[] heap = new int[0];
+        double[] heapKey = new double[0];
+        int[] heapIndex = new int[0];
+        int heapSize = 0;
+
+        void reset(int numNodes) {
+            if (cost.length < numNodes) {
+                cost = new double[numNodes];
+                parent = new int[numNodes];
+                seen = new int[numNodes];
+                closed = new int[numNodes];
+                target = new int[numNodes];
+                heap = new int[numNodes];
+                heapKey = new double[numNodes];
+                heapIndex = new int[numNodes];
+                stamp = 0;
+            }
+            stamp++;
+            if (stamp == Integer.MAX_VALUE) {
+                // start the stamps over before they wrap around.
+                Arrays.fill(seen, 0);
+                Arrays.fill(closed, 0);
+                Arrays.fill(target, 0);
+                stamp = 1;
+            }
+            heapSize = 0;
+        }
+
+        boolean isSeen(int node) {
+            return seen[node] == stamp;
+        }
+
+        boolean isClosed(int node) {
+            return closed[node] == stamp;
+        }
+
+        boolean isTarget(int node) {
+            return target[node] == stamp;
+        }
+
+        /**
+         * Mark the given nodes as targets of this search.
+         * @return The number of different targets.
+         */
+        int markTargets(int[] targets) {
+            int count = 0;
+            for (int node : targets) {
+                if (target[node] != stamp) {
+                    target[node] = stamp;
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        double costOf(int node) {
+            return (isSeen(node)) ? cost[node] : Double.POSITIVE_INFINITY;
+        }
+
+        int[] pathTo(int node) {
+            if (!isSeen(node))
+                return null;
+            int length = 0;
+            for (int n = node; n != -1; n = parent[n])
+                length++;
+            int[] path = new int[length];
+            for (int n = node; n != -1; n = parent[n])
+                path[--length] = n;
+            return path;
+        }
+
+        /**
+         * Give a node a new cost and parent, and add it to the heap or move
+         * it up to its new key.
+         */
+        void relax(int node, int from, double newCost, double key) {
+            cost[node] = newCost;
+            parent[node] = from;
+            if (!isSeen(node)) {
+                seen[node] = stamp;
+                heapIndex[node] = heapSize;
+                heap[heapSize] = node;
+                heapSize++;
+            }
+            heapKey[heapIndex[node]] = key;
+            siftUp(heapIndex[node]);
+        }
+
+        boolean heapIsEmpty() {
+            return heapSize == 0;
+        }
+
+        /**
+         * The smallest key on the heap, which must not be empty.
+         */
+        double minKey() {
+            return heapKey[0];
+        }
+
+        /**
+         * Take the node with the smallest key off the heap and settle it.
+         */
+        int pop() {
+            int top = heap[0];
+            heapSize--;
+            if (heapSize > 0) {
+                move(heap[heapSize], heapKey[heapSize], 0);
+                siftDown(0);
+            }
+            closed[top] = stamp;
+            return top;
+        }
+
+        private void siftUp(int i) {
+            int node = heap[i];
+            double key = heapKey[i];
+            while (i > 0) {
+                int up = (i - 1) / 2;
+                if (heapKey[up] <= key)
+                    break;
+                move(heap[up], heapKey[up], i);
+                i = up;
+            }
+            move(node, key, i);
+        }
+
+        private void siftDown(int i) {
+            int node = heap[i];
+            double key = heapKey[i];
+            while (true) {
+                int child = (i * 2) + 1;
+                if (child >= heapSize)
+                    break;
+                if (child + 1 < heapSize && heapKey[child + 1] < heapKey[child])
+                    child++;
+                if (heapKey[child] >= key)
+                    break;
+                move(heap[child], heapKey[child], i);
+                i = child;
+            }
+            move(node, key, i);
+        }
+
+        private void move(int node, double key, int i) {
+            heap[i] = node;
+            heapKey[i] = key;
+            heapIndex[node] = i;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+
+package polyfromimagecombinedspring;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plans paths between any two points on a map whose visibility graph is
+ * already built. For each query the start and goal are put into the graph
+ * for just that query (see AttachedGraph), a path is found with A*, and the
+ * points are dropped again, so the graph itself is never rebuilt.
+ *
+ * The collision tests for the new points use the segment index, and the
+ * nodes they are tested against can be limited to the ones near each point
+ * with a node grid. That can give a longer path than the shortest one (see
+ * AttachedGraph); if it finds no path at all, the query is tried again
+ * with every node tested, so a goal is only reported unreachable when it
+ * is. A planner never changes after it is made, so many threads can plan
+ * with it at once.
+ *
+ * Each planner gets a new version number when it is made. A planner is
+ * made for one built graph, so a rebuilt graph always means a new version,
+ * and no two planners share one. PathCache keys its paths with it, so it
+ * can hold the paths of many planners and never mixes them up.
+ */
+public class PathPlanner {
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final AdjacencyGraph graph;
+    private final SegmentIndex obstacles;
+    private final NodeGrid nodeGrid;
+    private final double candidateRadius;
+    private final long version;
+
+    /**
+     * Make a planner over a built graph.
+     * @param graph The visibility graph of the map
+     * @param obstacles The polygon edges the graph was built around
+     * @param candidateRadius Only join a query point to nodes this close to it, or 0 to try every node.
+     *                        Paths can then be a little longer than the shortest.
+     */
+    public PathPlanner(AdjacencyGraph graph, SegmentIndex obstacles, double candidateRadius) {
+        this.graph = graph;
+        this.obstacles = obstacles;
+        this.nodeGrid = (candidateRadius > 0) ? new NodeGrid(graph) : null;
+        this.candidateRadius = candidateRadius;
+        this.version = VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * Make a planner over a graph from polygonsToGraph.
+     * @param graph The visibility graph of the map
+     * @param inputPolys The polygons the graph was built around (not padded)
+     * @param candidateRadius Only join a query point to nodes this close to it, or 0 to try every node
+     */
+    public PathPlanner(SimpleGraph graph, ArrayList<ArrayList<SimplePoint>> inputPolys, double candidateRadius) {
+        this(CsrGraph.fromSimpleGraph(graph), new SegmentIndex(inputPolys), candidateRadius);
+    }
+
+    public AdjacencyGraph getGraph() {
+        return graph;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Find the shortest path from one point to another. With a candidate
+     * radius it can be a little longer than the shortest.
+     * @param startX
+     * @param startY
+     * @param goalX
+     * @param goalY
+     * @return The path, stored as x, y for each point from the start to the goal,
+     *         or null if the goal can't be reached.
+     */
+    public double[] plan(double startX, double startY, double goalX, double goalY) {
+        AttachedGraph query = attach(startX, startY, goalX, goalY, nodeGrid);
+        int[] path = new PathFinder(query).aStarPath(query.pointNode(0), query.pointNode(1));
+        if (path == null && nodeGrid != null) {
+            // the nodes near a point may only be cut off, so test every node.
+            query = attach(startX, startY, goalX, goalY, null);
+            path = new PathFinder(query).aStarPath(query.pointNode(0), query.pointNode(1));
+        }
+        if (path == null)
+            return null;
+        double[] coordinates = new double[path.length * 2];
+        for (int i = 0; i < path.length; i++) {
+            coordinates[i * 2] = query.x(path[i]);
+            coordinates[i * 2 + 1] = query.y(path[i]);
+        }
+        return coordinates;
+    }
+
+    /**
+     * The length of the shortest path from one point to another, or of a
+     * path a little longer than it with a candidate radius.
+     * @param startX
+     * @param startY
+     * @param goalX
+     * @param goalY
+     * @return The path length, or infinity if the goal can't be reached.
+     */
+    public double distance(double startX, double startY, double goalX, double goalY) {
+        AttachedGraph query = attach(startX, startY, goalX, goalY, nodeGrid);
+        double distance = new PathFinder(query).aStarDistance(query.pointNode(0), query.pointNode(1));
+        if (Double.isInfinite(distance) && nodeGrid != null) {
+            query = attach(startX, startY, goalX, goalY, null);
+            distance = new PathFinder(query).aStarDistance(query.pointNode(0), query.pointNode(1));
+        }
+        return distance;
+    }
+
+    private AttachedGraph attach(double startX, double startY, double goalX, double goalY, NodeGrid candidates) {
+        return new AttachedGraph(graph, obstacles, new double[] { startX, startY, goalX, goalY },
+                candidates, candidateRadius);
+    }
+}
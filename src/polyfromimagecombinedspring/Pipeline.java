@@ -0,0 +1,503 @@
+
+package polyfromimagecombinedspring;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The steps that turn a map image into a visibility graph, as an object
+ * that can be kept and used for many images:
+ *
+ *   segmentation  split the image into clusters and rank them by saliency
+ *   threshold     keep the edge pixels of the two most salient clusters
+ *   grouping      group the edge points into obstacles
+ *   hulls         make a polygon around each group
+ *   graph         build the visibility graph around the polygons
+ *
+ * Each step is an interface, so any of them can be swapped out. The
+ * defaults do what the command line tool has always done.
+ *
+ * The per-pixel arrays the pipeline owns (the pixels, the texture
+ * features, the labels and the edge mask) are kept between images and
+ * only made again when the image size changes, so the next image of the
+ * same size doesn't need new ones. The threads the graph stage uses are
+ * kept the same way, in a WorkerPool. Because the arrays are reused, a
+ * Result is only valid until the next image is processed, and a pipeline
+ * is used from one thread at a time; use one pipeline per thread.
+ *
+ * If the config has a cache directory, the outputs of stage 1, the groups
+ * and the polygons are kept in a StageCache, and an image that was seen
+ * before with the same settings up to a stage starts after that stage.
+ * Only the default stages are cached, since the cache keys don't know
+ * what a replaced stage does.
+ */
+public class Pipeline {
+
+    /**
+     * Stage 1: fill in clusterMembership and clusterSaliencyOrdering, and
+     * the stage 1 times, of the result.
+     */
+    public interface SegmentationStage {
+        void segment(BufferedImage image, PipelineConfig config, Scratch scratch, Result result);
+    }
+
+    /**
+     * Stage 1: find the pixels to group, from the clusters in the result.
+     */
+    public interface ThresholdStage {
+        EdgeMask threshold(Result result, PipelineConfig config, Scratch scratch);
+    }
+
+    /**
+     * Stage 2: group the points into obstacles.
+     */
+    public interface GroupingStage {
+        ArrayList<ArrayList<SimplePoint>> group(ArrayList<SimplePoint> points, PipelineConfig config);
+    }
+
+    /**
+     * Stage 3: make a polygon around each group.
+     */
+    public interface HullStage {
+        ArrayList<ArrayList<SimplePoint>> hulls(ArrayList<ArrayList<SimplePoint>> groups, PipelineConfig config);
+    }
+
+    /**
+     * Stage 4: build a graph around the polygons, inside a map of the given size.
+     */
+    public interface GraphStage {
+        SimpleGraph build(ArrayList<ArrayList<SimplePoint>> polygons, int width, int height, PipelineConfig config);
+    }
+
+    /**
+     * What each stage made for one image. Times are in milliseconds, and
+     * are -1 for a step that didn't run.
+     *
+     * The label map and edge mask come from the pipeline's Scratch (or a
+     * FrameDiffProcessor's own arrays) and are written over by the next
+     * image, so they are only good until process is called again; anything
+     * that needs them later, such as a job on an OutputWriter, must use a
+     * copy or an image made from them. Everything else can be kept, but
+     * may be shared with later results, so it must not be changed.
+     */
+    public static class Result {
+        public int width, height;
+        public LabelMap clusterMembership;
+        public int[] clusterSaliencyOrdering;
+        public EdgeMask edges;
+        public ArrayList<SimplePoint> points;
+        public ArrayList<ArrayList<SimplePoint>> groups;
+        public ArrayList<ArrayList<SimplePoint>> polygons;
+        public SimpleGraph graph;
+        public long timeTextures = -1, timeStage1cluster = -1, timeStage1saliency = -1;
+        public long timeStage2 = -1, timeStage3 = -1, timeStage4 = -1;
+    }
+
+    /**
+     * Per-pixel arrays kept between images of the same size. Whoever asks
+     * for an array must set every element of it, since it still holds the
+     * last image's values.
+     */
+    public static class Scratch {
+        private int width = -1, height = -1;
+        private LabelMap labels;
+        private EdgeMask edges;
+        private int[] pixels;
+        private float[] textureFeatures;
+
+        void resize(int width, int height) {
+            if (width == this.width && height == this.height)
+                return;
+            this.width = width;
+            this.height = height;
+            labels = null;
+            edges = null;
+            pixels = null;
+            textureFeatures = null;
+        }
+
+        public LabelMap labels() {
+            if (labels == null)
+                labels = new LabelMap(width, height);
+            return labels;
+        }
+
+        public EdgeMask edges() {
+            if (edges == null)
+                edges = new EdgeMask(width, height);
+            return edges;
+        }
+
+        /**
+         * Space for the RGB of each pixel, row-major.
+         * @return
+         */
+        public int[] pixels() {
+            if (pixels == null)
+                pixels = new int[width * height];
+            return pixels;
+        }
+
+        /**
+         * Space for the texture features of each pixel, as
+         * TextureClusterer.findTextureFeatures lays them out.
+         * @return
+         */
+        public float[] textureFeatures() {
+            if (textureFeatures == null)
+                textureFeatures = new float[width * height * TextureDescription.NUM_FEATURES];
+            return textureFeatures;
+        }
+    }
+
+    private final PipelineConfig config;
+    private final Scratch scratch = new Scratch();
+    private static final SegmentationStage DEFAULT_SEGMENTATION = Pipeline::segment;
+    private static final ThresholdStage DEFAULT_THRESHOLD = Pipeline::threshold;
+    private static final GroupingStage DEFAULT_GROUPING = (points, c) -> GeometricOperations.groupPoints(points,
+            c.groupMinDistance, c.groupMaxDistance, c.groupCutoffSize, c.groupMinVariance);
+    private static final HullStage DEFAULT_HULLS = (groups, c) -> GeometricOperations.convexHullOnPointGroups(groups,
+            c.hullMaxDistance);
+
+    private SegmentationStage segmentationStage = DEFAULT_SEGMENTATION;
+    private ThresholdStage thresholdStage = DEFAULT_THRESHOLD;
+    private GroupingStage groupingStage = DEFAULT_GROUPING;
+    private HullStage hullStage = DEFAULT_HULLS;
+    private GraphStage graphStage = (polygons, width, height, c) -> GeometricOperations.polygonsToGraph(polygons,
+            c.paddingScale, 0, height, 0, width, getWorkers());
+    private WorkerPool workers;
+
+    /**
+     * Make a pipeline with the default stages.
+     * @param config The settings; they are read each time an image is processed
+     */
+    public Pipeline(PipelineConfig config) {
+        config.validate();
+        this.config = config;
+    }
+
+    public PipelineConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * The threads this pipeline splits its work between, and that its
+     * output images can be drawn with. They are kept between images, and
+     * made again only if config.numThreads changes.
+     * @return
+     */
+    public synchronized WorkerPool getWorkers() {
+        if (workers == null || workers.getNumThreads() != Math.max(1, config.numThreads)) {
+            if (workers != null)
+                workers.close();
+            workers = new WorkerPool(config.numThreads);
+        }
+        return workers;
+    }
+
+    public void setSegmentationStage(SegmentationStage stage) {
+        segmentationStage = stage;
+    }
+
+    public void setThresholdStage(ThresholdStage stage) {
+        thresholdStage = stage;
+    }
+
+    public void setGroupingStage(GroupingStage stage) {
+        groupingStage = stage;
+    }
+
+    public void setHullStage(HullStage stage) {
+        hullStage = stage;
+    }
+
+    public void setGraphStage(GraphStage stage) {
+        graphStage = stage;
+    }
+
+    /**
+     * Run every stage on an image.
+     * @param image The map image
+     * @return What each stage made, valid until the next image is processed.
+     */
+    public Result process(BufferedImage image) {
+        config.validate();
+        scratch.resize(image.getWidth(), image.getHeight());
+        Result result = new Result();
+        result.width = image.getWidth();
+        result.height = image.getHeight();
+        StageCache cache = openCache();
+        String labelsKey = null;
+        if (cache != null && segmentationStage == DEFAULT_SEGMENTATION && thresholdStage == DEFAULT_THRESHOLD) {
+            labelsKey = StageCache.labelsKey(image, config);
+            StageCache.Labels labels = cache.loadLabels(labelsKey);
+            if (labels != null) {
+                if (config.verbose)
+                    System.out.println("Loaded the clusters from the cache.");
+                result.clusterMembership = labels.clusterMembership;
+                result.clusterSaliencyOrdering = labels.clusterSaliencyOrdering;
+                return processEdges(labels.edges, result, cache, labelsKey);
+            }
+        }
+        segmentationStage.segment(image, config, scratch, result);
+        EdgeMask edges = thresholdStage.threshold(result, config, scratch);
+        if (labelsKey != null)
+            cache.storeLabels(labelsKey, result.clusterMembership, result.clusterSaliencyOrdering, edges);
+        return processEdges(edges, result, cache, labelsKey);
+    }
+
+    /**
+     * Run the stages after the threshold, for edges that were found some
+     * other way (for example from an image read in tiles). Nothing is
+     * cached, since there are no pixels to key the cache with.
+     * @param edges The pixels to group
+     * @return What each stage made.
+     */
+    public Result processEdges(EdgeMask edges) {
+        config.validate();
+        Result result = new Result();
+        result.width = edges.getWidth();
+        result.height = edges.getHeight();
+        return processEdges(edges, result, null, null);
+    }
+
+    /**
+     * The cache the config asks for, or null if there isn't one or it
+     * can't be made.
+     */
+    private StageCache openCache() {
+        if (config.cacheDirectory == null)
+            return null;
+        try {
+            return new StageCache(config.cacheDirectory);
+        } catch (java.io.IOException e) {
+            System.err.println(e);
+            return null;
+        }
+    }
+
+    private Result processEdges(EdgeMask edges, Result result, StageCache cache, String labelsKey) {
+        result.edges = edges;
+        result.points = edgePoints(edges);
+
+        String groupsKey = (labelsKey != null && groupingStage == DEFAULT_GROUPING) ?
+                StageCache.groupsKey(labelsKey, config) : null;
+        result.groups = (groupsKey == null) ? null : cache.loadGroups(groupsKey);
+        if (result.groups != null) {
+            if (config.verbose)
+                System.out.println("Loaded the groups from the cache.");
+        } else {
+            long beforeTime = System.currentTimeMillis();
+            if (config.verbose)
+                System.out.print("Grouping " + (result.points.size()) +" points... ");
+            result.groups = groupingStage.group(result.points, config);
+            if (config.verbose)
+                System.out.println("Finished grouping the points");
+            result.timeStage2 = System.currentTimeMillis() - beforeTime;
+            if (groupsKey != null)
+                cache.storeGroups(groupsKey, result.groups);
+        }
+
+        String polygonsKey = (groupsKey != null && hullStage == DEFAULT_HULLS) ?
+                StageCache.polygonsKey(groupsKey, config) : null;
+        result.polygons = (polygonsKey == null) ? null : cache.loadPolygons(polygonsKey);
+        if (result.polygons != null) {
+            if (config.verbose)
+                System.out.println("Loaded the polygons from the cache.");
+        } else {
+            long beforeTime = System.currentTimeMillis();
+            if (config.verbose)
+                System.out.print("Constructing convex hulls of point groups...");
+            result.polygons = hullStage.hulls(result.groups, config);
+            if (config.verbose)
+                System.out.println("Finished constructing convex hulls.");
+            result.timeStage3 = System.currentTimeMillis() - beforeTime;
+            if (polygonsKey != null)
+                cache.storePolygons(polygonsKey, result.polygons);
+        }
+
+        long beforeTime = System.currentTimeMillis();
+        if (config.verbose)
+            System.out.print("Constructing visibility graph...");
+        result.graph = graphStage.build(result.polygons, result.width, result.height, config);
+        if (config.verbose)
+            System.out.println("Finished constructing the visibility graph.");
+        result.timeStage4 = System.currentTimeMillis() - beforeTime;
+        return result;
+    }
+
+    /**
+     * The default stage 1: texture or colour clustering, or reading a
+     * ground truth image where black pixels are obstacles.
+     */
+    private static void segment(BufferedImage image, PipelineConfig config, Scratch scratch, Result result) {
+        int numClusters = config.numClusters;
+        long beforeTime = System.currentTimeMillis();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (config.method == PipelineConfig.Method.TEXTURE) {
+            if (config.verbose)
+                System.out.print("Finding the texture descriptions...");
+            int[] pixels = scratch.pixels();
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+            float[] features = scratch.textureFeatures();
+            TextureClusterer.findTextureFeatures(pixels, width, height, config.textureWindow, features);
+            if (config.verbose)
+                System.out.println("Finished finding texture descriptions.");
+            result.timeTextures = System.currentTimeMillis() - beforeTime;
+
+            beforeTime = System.currentTimeMillis();
+            if (config.verbose)
+                System.out.print("Calculating clusters... ");
+            result.clusterMembership = scratch.labels();
+            TextureClusterer.textureClusteringIndices(width, height, features, numClusters, result.clusterMembership);
+            if (config.verbose)
+                System.out.println("Finished finding clusters.");
+            result.timeStage1cluster = System.currentTimeMillis() - beforeTime;
+
+            beforeTime = System.currentTimeMillis();
+            if (config.verbose)
+                System.out.print("Finding most salient clusters... ");
+            result.clusterSaliencyOrdering = TextureClusterer.findSalientImageClusters(width, height, features,
+                    result.clusterMembership, numClusters);
+            if (config.verbose)
+                System.out.println("Finished finding salient clusters.");
+            result.timeStage1saliency = System.currentTimeMillis() - beforeTime;
+        } else if (config.method == PipelineConfig.Method.COLOR) {
+            if (config.verbose)
+                System.out.println("Biulding colors array...");
+            int[] pixels = scratch.pixels();
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+
+            if (config.verbose)
+                System.out.print("Calculating clusters... ");
+            result.clusterMembership = scratch.labels();
+            TextureClusterer.colorClusteringIndices(width, height, pixels, numClusters, result.clusterMembership);
+            if (config.verbose)
+                System.out.println("Finished finding clusters.");
+            result.timeStage1cluster = System.currentTimeMillis() - beforeTime;
+
+            beforeTime = System.currentTimeMillis();
+            if (config.verbose)
+                System.out.print("Finding most salient clusters... ");
+            result.clusterSaliencyOrdering = TextureClusterer.findSalientImageClustersColor(width, height, pixels,
+                    result.clusterMembership, numClusters);
+            if (config.verbose)
+                System.out.println("Finished finding salient clusters.");
+            result.timeStage1saliency = System.currentTimeMillis() - beforeTime;
+        } else { // ground truth image.
+            LabelMap clusterMembership = scratch.labels();
+            byte[] labels = clusterMembership.getData();
+            int[] row = new int[width];
+            for (int j = 0; j < height; j++) {
+                image.getRGB(0, j, width, 1, row, 0, width);
+                for (int i = 0; i < width; i++)
+                    labels[(j * width) + i] = (byte)(((row[i] >> 16) & 0xFF) < 32 ? 0 : 1); // if it is black, cluster 0. else, cluster 1
+            }
+            result.clusterMembership = clusterMembership;
+            result.clusterSaliencyOrdering = new int[ numClusters ]; // since this initialized to all zeros, cluster 0 will be the desired salient region
+        }
+    }
+
+    /**
+     * The edge pixels as points, a column at a time from the left, and from
+     * the top within a column, which is the order the grouping has always
+     * had them in. The mask is read a row at a time: the rows of each
+     * column's points are counted and then filled in, like a counting sort.
+     * Pixels in the first row or column are never used.
+     */
+    private static ArrayList<SimplePoint> edgePoints(EdgeMask edges) {
+        int width = edges.getWidth();
+        int height = edges.getHeight();
+        boolean[] mask = edges.getData();
+        // columnStart[i] to columnStart[i + 1] are the rows of the points in column i.
+        int[] columnStart = new int[width + 1];
+        for (int j = 1; j < height; j++) {
+            int p = j * width;
+            for (int i = 1; i < width; i++) {
+                if (mask[p + i])
+                    columnStart[i + 1]++;
+            }
+        }
+        for (int i = 0; i < width; i++)
+            columnStart[i + 1] += columnStart[i];
+        int[] next = columnStart.clone();
+        int[] rows = new int[columnStart[width]];
+        for (int j = 1; j < height; j++) {
+            int p = j * width;
+            for (int i = 1; i < width; i++) {
+                if (mask[p + i])
+                    rows[next[i]++] = j;
+            }
+        }
+        ArrayList<SimplePoint> points = new ArrayList<>(rows.length);
+        for (int i = 1; i < width; i++) {
+            for (int k = columnStart[i]; k < columnStart[i + 1]; k++)
+                points.add(new SimplePoint(i, rows[k]));
+        }
+        return points;
+    }
+
+    /**
+     * The default threshold: keep the pixels of the two most salient
+     * clusters that are next to a pixel that isn't. Pixels on the border
+     * of the image are never kept.
+     */
+    private static EdgeMask threshold(Result result, PipelineConfig config, Scratch scratch) {
+        LabelMap clusterMembership = result.clusterMembership;
+        int[] clusterSaliencyOrdering = result.clusterSaliencyOrdering;
+        int width = clusterMembership.getWidth();
+        int height = clusterMembership.getHeight();
+        byte[] labels = clusterMembership.getData();
+        // whether each label is in the threshold image. true = black/obstacle. false = white.
+        boolean[] isObstacle = new boolean[ LabelMap.MAX_LABELS ];
+        isObstacle[clusterSaliencyOrdering[0]] = true; // two most salient clusters
+        isObstacle[clusterSaliencyOrdering[1]] = true;
+        EdgeMask thresholdNoEdgeImage = scratch.edges();
+        boolean[] edges = thresholdNoEdgeImage.getData();
+        // the border of the image is never kept, and findEdges writes every pixel inside it.
+        Arrays.fill(edges, 0, width, false);
+        Arrays.fill(edges, (height - 1) * width, height * width, false);
+        for (int j = 1; j < height - 1; j++) {
+            edges[j * width] = false;
+            edges[(j * width) + width - 1] = false;
+        }
+        findEdges(labels, width, isObstacle, edges, 1, 1, width - 1, height - 1);
+        return thresholdNoEdgeImage;
+    }
+
+    /**
+     * Work out again whether each pixel in a rectangle is an edge pixel:
+     * an obstacle pixel next to one that isn't.
+     * @param labels The labels, row-major
+     * @param width The width of the image
+     * @param isObstacle Whether each label is an obstacle
+     * @param edges The mask to write, row-major
+     * @param x0 The first column, at least 1
+     * @param y0 The first row, at least 1
+     * @param x1 One past the last column, at most width - 1
+     * @param y1 One past the last row, at most height - 1
+     * @return Whether any pixel of the mask changed.
+     */
+    static boolean findEdges(byte[] labels, int width, boolean[] isObstacle, boolean[] edges,
+            int x0, int y0, int x1, int y1) {
+        boolean changed = false;
+        for (int j = y0; j < y1; j++) {
+            int p = j * width;
+            for (int i = x0; i < x1; i++) {
+                int q = p + i;
+                boolean edge = isObstacle[labels[q] & 0xFF] &&
+                        !(isObstacle[labels[q + 1] & 0xFF] && isObstacle[labels[q - 1] & 0xFF] &&
+                        isObstacle[labels[q + width] & 0xFF] && isObstacle[labels[q - width] & 0xFF] &&
+                        isObstacle[labels[q - width + 1] & 0xFF] && isObstacle[labels[q + width + 1] & 0xFF] &&
+                        isObstacle[labels[q - width - 1] & 0xFF] && isObstacle[labels[q + width - 1] & 0xFF]);
+                if (edge != edges[q]) {
+                    edges[q] = edge;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,82 @@
+
+package polyfromimagecombinedspring;
+
+import java.io.File;
+
+/**
+ * The settings for a Pipeline. The defaults are the values the command
+ * line tool has always used.
+ */
+public class PipelineConfig {
+
+    /**
+     * How stage 1 splits the image into regions.
+     */
+    public enum Method {
+        TEXTURE("texture"), COLOR("color"), GROUND_TRUTH("groundtruth");
+
+        private final String name;
+
+        Method(String name) {
+            this.name = name;
+        }
+
+        /**
+         * The name used in output file names.
+         * @return
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The method for a version number on the command line.
+         * @param version 0 is textures, 1 is colours, 2 is a ground truth image
+         * @return
+         */
+        public static Method fromVersion(int version) {
+            if (version < 0 || version >= values().length)
+                throw new IllegalArgumentException("Invalid version number " + version);
+            return values()[version];
+        }
+    }
+
+    public Method method = Method.TEXTURE;
+    // stage 1: clustering.
+    public int numClusters = 5;
+    public int textureWindow = 13;
+    // stage 2: grouping the edge points.
+    public double groupMinDistance = 2;
+    public double groupMaxDistance = 150;
+    public double groupCutoffSize = 10;
+    public double groupMinVariance = 2;
+    // stage 3: convex hulls.
+    public double hullMaxDistance = 3;
+    // stage 4: the visibility graph.
+    public double paddingScale = 1.2;
+    public int numThreads = Runtime.getRuntime().availableProcessors();
+    // print a line as each stage starts and ends.
+    public boolean verbose = false;
+    // where to keep the outputs of the early stages between runs, or null for nowhere.
+    public File cacheDirectory = null;
+
+    /**
+     * Check the settings make sense.
+     * @throws IllegalArgumentException If they don't
+     */
+    public void validate() {
+        if (method == null)
+            throw new IllegalArgumentException("No clustering method");
+        // the threshold keeps the two most salient clusters.
+        if (numClusters < 2)
+            throw new IllegalArgumentException("Need at least 2 clusters, not " + numClusters);
+        if (numClusters > LabelMap.MAX_LABELS)
+            throw new IllegalArgumentException("At most " + LabelMap.MAX_LABELS + " clusters, not " + numClusters);
+        if (textureWindow < 1)
+            throw new IllegalArgumentException("Bad texture window " + textureWindow);
+        if (paddingScale <= 0)
+            throw new IllegalArgumentException("Bad padding scale " + paddingScale);
+        if (numThreads < 1)
+            throw new IllegalArgumentException("Need at least 1 thread, not " + numThreads);
+    }
+}
@@ -7,6 +7,7 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File; 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -24,6 +25,25 @@ import javax.imageio.ImageIO;
  */
 public class PolyFromImageCombinedSpring {
 
+    /**
+     * What processImage writes, besides the graph.
+     */
+    public static class RunOptions {
+        public boolean showProgressImages = false;
+        public boolean buildHierarchy = false;
+        public boolean buildCoarseGraph = false;
+        public boolean gzipGraph = false;
+        public OutputWriter.ImageFormat debugFormat = OutputWriter.ImageFormat.PNG;
+        public int debugPngLevel = -1;
+        public boolean tiledInput = false;
+    }
+    
+    private final static int FRAME_TILE_SIZE = 64;
+    // how many output files can wait to be written before an image has to write its own.
+    private final static int OUTPUT_QUEUE_SIZE = 16;
+    // how many times smaller the output images of an image read in tiles are along each side.
+    private final static int TILED_IMAGE_SCALE = 4;
+
     private final static Color[] distinctColors = {
             Color.RED, Color.BLUE, Color.CYAN, Color.ORANGE, Color.GREEN,
             Color.GRAY, Color.MAGENTA, Color.PINK, Color.DARK_GRAY,
@@ -37,307 +57,382 @@ public class PolyFromImageCombinedSpring {
      * and the second name is he name of the output image. file.
      */
     public static void main(String[] args) {
-        if (args.length != 3) {
-            System.err.println("Three arguments needed: initial image, version, progress images=1|0");
+        if (args.length >= 2 && args[0].equals("serve")) {
+            serve(args);
+            return;
+        }
+        if (args.length < 3) {
+            System.err.println("Three arguments needed: initial image (or a directory or glob of images), version, progress images=1|0");
+            System.err.println("Optional flags after them: ch (also save a contraction hierarchy of the graph), "
+                    + "coarse (also save a coarse graph around merged obstacles), "
+                    + "gz (gzip the JSON graph), png0 to png9 (deflate level of the progress images), "
+                    + "bmp (write the progress images as BMP), "
+                    + "tiled (read a ground truth image in tiles for stage 1; the output images are 4 times smaller), "
+                    + "batch (process every image in a directory or glob), workers=N (images at once in batch mode), "
+                    + "memory=MB (memory budget for the images in batch mode), "
+                    + "frames (process a directory or glob of images in order as frames of one map, "
+                    + "only working out again the tiles that changed), "
+                    + "cache=DIR (keep the clusters, groups and polygons in DIR and reuse them)");
+            System.err.println("Or run as a local HTTP service: serve version [port=N] [workers=N] [queue=N] [cache=DIR]");
             return;
         } 
-        BufferedImage imageRaw = null; // The initial input image.
+        RunOptions options = new RunOptions();
+        options.showProgressImages = Integer.parseInt(args[2]) == 1;
+        boolean batch = new File(args[0]).isDirectory();
+        boolean frames = false;
+        int numWorkers = 0;
+        long memoryBudgetMb = 0;
+        File cacheDirectory = null;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("ch"))
+                options.buildHierarchy = true;
+            else if (args[i].equals("coarse"))
+                options.buildCoarseGraph = true;
+            else if (args[i].equals("gz"))
+                options.gzipGraph = true;
+            else if (args[i].equals("bmp"))
+                options.debugFormat = OutputWriter.ImageFormat.BMP;
+            else if (args[i].matches("png[0-9]"))
+                options.debugPngLevel = args[i].charAt(3) - '0';
+            else if (args[i].equals("tiled"))
+                options.tiledInput = true;
+            else if (args[i].equals("batch"))
+                batch = true;
+            else if (args[i].equals("frames"))
+                frames = true;
+            else if (args[i].startsWith("cache=") && args[i].length() > 6)
+                cacheDirectory = new File(args[i].substring(6));
+            else if (args[i].matches("workers=[0-9]+"))
+                numWorkers = Integer.parseInt(args[i].substring(8));
+            else if (args[i].matches("memory=[0-9]+"))
+                memoryBudgetMb = Long.parseLong(args[i].substring(7));
+            else
+                System.err.println("Unknown flag " + args[i] + " ignored");
+        }
+        PipelineConfig config = new PipelineConfig();
         try {
-            imageRaw = (BufferedImage) ImageIO.read(new File(args[0]));
-        } catch(Exception e) {
-            System.err.println(e);
+            config.method = PipelineConfig.Method.fromVersion(Integer.parseInt(args[1])); // 0 is with textures, 1 is with colors.
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid version number");
+            return;
         }
-        if (imageRaw != null) {
-            System.out.println("Loaded image successfully");
-            boolean showProgressImages = Integer.parseInt(args[2]) == 1;
-            int version = Integer.parseInt(args[1]); // 0 is with textures, 1 is with colors.
-            int numClusters = 5;
-            int textureWindow = 13;
-            String clusteringMethod = "texture";
-            if (version == 1)
-                clusteringMethod = "color";
-            else if (version == 2)
-                clusteringMethod = "groundtruth";
-            String outputStrPrefix = outputImgStr(args[0]) + "-v" + clusteringMethod;
-            // get that output name by adding _out to the end of the input image name
-            File outputImageClusters = new File(outputStrPrefix + "_clusters" + ".png");
-            File outputImageSaliency = new File(outputStrPrefix + "_saliency" + ".png");
-            File outputImageThreshold = new File(outputStrPrefix + "_threshold" + ".png");
-            File outputImageGroups = new File(outputStrPrefix + "_groups" + ".png");
-            File outputImagePolygons = new File(outputStrPrefix + "_polygons" + ".png");
-            
-            File outputImageOverlay = new File(outputStrPrefix + "_overlay" + ".png");
-            File outputImageGraph = new File(outputStrPrefix + "_graph" + ".png");
-            File outputJsonGraph = new File(outputStrPrefix + "_graph.json");
-            String timeStamp = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss").format(new Date());
-            File outputCsvRuntime = new File(outputStrPrefix + "_runtime_" + timeStamp + ".csv");
-            long timeTextures = -1, timeStage1cluster = -1, timeStage1saliency = -1, timeStage2, timeStage3, timeStage4;
-            long beforeTime = System.currentTimeMillis(); 
-            
-            int[][] clusterMembership = null;
-            int[] clusterSaliencyOrdering = null;
-            TextureDescription[] textureDescription = null;
-            ColorCluster[] colorsArray = null;
-                    
-            if (version == 0) { // texture clustering
-                System.out.print("Finding the texture descriptions...");
-                textureDescription = TextureClusterer.findTextureDescription(imageRaw, textureWindow); 
-                System.out.println("Finished finding texture descriptions.");
-                timeTextures = System.currentTimeMillis() - beforeTime;
-                
-                beforeTime = System.currentTimeMillis();
-                System.out.print("Calculating clusters... ");
-                clusterMembership = TextureClusterer.textureClusteringIndices(imageRaw, textureDescription, numClusters);
-                System.out.println("Finished finding clusters.");
-                timeStage1cluster = System.currentTimeMillis() - beforeTime;
-            
-                beforeTime = System.currentTimeMillis();
-                System.out.print("Finding most salient clusters... ");
-                clusterSaliencyOrdering = TextureClusterer.findSalientImageClusters(imageRaw, textureDescription, clusterMembership, numClusters);
-                System.out.println("Finished finding salient clusters.");
-                timeStage1saliency = System.currentTimeMillis() - beforeTime;
-            } else if (version == 1) { // color clustering
-                beforeTime = System.currentTimeMillis();
-                System.out.println("Biulding colors array...");
-                colorsArray = new ColorCluster[ imageRaw.getWidth() * imageRaw.getHeight() ];
-                for (int i = 0; i < imageRaw.getWidth(); i++) {
-                    for (int j = 0; j < imageRaw.getHeight(); j++) {
-                        Color pc = new Color(imageRaw.getRGB(i, j));
-                        colorsArray[ (i * imageRaw.getHeight()) + j ] = new ColorCluster(pc, 0);
-                    }
-                }
-                
-                System.out.print("Calculating clusters... ");
-                clusterMembership = TextureClusterer.colorClusteringIndices(imageRaw, colorsArray, numClusters);
-                System.out.println("Finished finding clusters.");
-                timeStage1cluster = System.currentTimeMillis() - beforeTime;
-                
-                beforeTime = System.currentTimeMillis();
-                System.out.print("Finding most salient clusters... ");
-                clusterSaliencyOrdering = TextureClusterer.findSalientImageClustersColor(imageRaw, colorsArray, clusterMembership, numClusters);
-                System.out.println("Finished finding salient clusters.");
-                timeStage1saliency = System.currentTimeMillis() - beforeTime;
-            } else if (version == 2) { // ground truth image.
-                clusterMembership = new int[ imageRaw.getWidth() ][ imageRaw.getHeight() ];
-                clusterSaliencyOrdering = new int[ numClusters ]; // since this initialized to all zeros, cluster 0 will be the desired salient region
-                for (int i = 0; i < imageRaw.getWidth(); i++) {
-                    for (int j = 0; j < imageRaw.getHeight(); j++) {
-                        Color pc = new Color(imageRaw.getRGB(i, j));
-                        clusterMembership[i][j] = pc.getRed() < 32 ? 0 : 1; // if it is black, cluster 0. else, cluster 1
-                    }
-                }
-            }
-            
-            if (version < 0 || version > 2) {
-                System.err.println("Invalid version number");
-                return;
-            }
-            
-            // create a threshold image. true = black/obstacle. false = white.
-            boolean[][] thresholdImage = new boolean[ imageRaw.getWidth() ][ imageRaw.getHeight() ];
-            boolean[][] thresholdNoEdgeImage = new boolean[ imageRaw.getWidth() ][ imageRaw.getHeight() ];
-            for (int i = 0; i < clusterMembership.length; i++) {
-                for (int j = 0; j < clusterMembership[i].length; j++) {
-                    thresholdImage[i][j] = ((clusterMembership[i][j] == clusterSaliencyOrdering[0]) || // two most salient clusters
-                            (clusterMembership[i][j] == clusterSaliencyOrdering[1]));
-                }
+        config.cacheDirectory = cacheDirectory;
+        
+        // one writer for every image, so the files of one image are encoded
+        // while the next one is read and processed.
+        OutputWriter writer = new OutputWriter(Runtime.getRuntime().availableProcessors(), OUTPUT_QUEUE_SIZE);
+        writer.setDebugImageFormat(options.debugFormat, options.debugPngLevel);
+        try {
+            run(args[0], config, options, frames, batch, numWorkers, memoryBudgetMb, writer);
+        } finally {
+            try {
+                writer.close();
+            } catch (InterruptedException e) {
+                System.err.println(e);
             }
-            // edge removal on the threshold image
-            for (int i = 1; i < thresholdImage.length - 1; i++) {
-                for (int j = 1; j < thresholdImage[i].length - 1; j++) {
-                    int k = 0; // see if this is an edge or not.
-                    k += (thresholdImage[i + 1][j] ? 1 : 0);
-                    k += (thresholdImage[i - 1][j] ? 1 : 0);
-                    k += (thresholdImage[i][j + 1] ? 1 : 0);
-                    k += (thresholdImage[i][j - 1] ? 1 : 0);
-                    k += (thresholdImage[i + 1][j - 1] ? 1 : 0);
-                    k += (thresholdImage[i + 1][j + 1] ? 1 : 0);
-                    k += (thresholdImage[i - 1][j - 1] ? 1 : 0);
-                    k += (thresholdImage[i - 1][j + 1] ? 1 : 0); 
-                    if (k == 8)
-                        thresholdNoEdgeImage[i][j] = false; // only have edge pixels
-                    else
-                        thresholdNoEdgeImage[i][j] = thresholdImage[i][j];
-                }
+        }
+    } 
+
+    /**
+     * Process the images in the mode main was asked for.
+     */
+    private static void run(String input, PipelineConfig config, RunOptions options, boolean frames, boolean batch,
+            int numWorkers, long memoryBudgetMb, OutputWriter writer) {
+        if (frames) {
+            // the frames share state, so they are done one at a time, and never in tiles.
+            options.tiledInput = false;
+            config.verbose = true;
+            try {
+                FrameDiffProcessor processor = new FrameDiffProcessor(config, FRAME_TILE_SIZE);
+                for (File frame : BatchRunner.listInputs(input))
+                    processImage(frame, processor.getPipeline(), options, writer);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println(e);
             }
-            
-            ArrayList<SimplePoint> points = new ArrayList<>(); 
-            for (int i = 1; i < thresholdNoEdgeImage.length; i++) {
-                for (int j = 1; j < thresholdNoEdgeImage[i].length; j++) {
-                    if (thresholdNoEdgeImage[i][j]) { 
-                        points.add(new SimplePoint((int)i, (int)j));
-                    }
-                }
+            return;
+        }
+        if (batch) {
+            try {
+                ArrayList<File> inputs = BatchRunner.listInputs(input);
+                BatchRunner runner = new BatchRunner(config, options, numWorkers, memoryBudgetMb, writer);
+                String timeStamp = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss").format(new Date());
+                runner.run(inputs, new File("batch_summary_" + timeStamp + ".csv"));
+            } catch (IOException | InterruptedException e) {
+                System.err.println(e);
             }
-            
-            beforeTime = System.currentTimeMillis();
-            // group points...
-            System.out.print("Grouping " + (points.size()) +" points... ");
-            ArrayList< ArrayList<SimplePoint> > groups = GeometricOperations.groupPoints(points, 2, 150, 10, 2);
-            System.out.println("Finished grouping the points"); 
-            timeStage2 = System.currentTimeMillis() - beforeTime;
-            int stage2NumGroups = groups.size();
-            
-            beforeTime = System.currentTimeMillis();
-            // convex hull...
-            System.out.print("Constructing convex hulls of point groups...");
-            ArrayList< ArrayList<SimplePoint> > polygons = GeometricOperations.convexHullOnPointGroups(groups, 3);
-            System.out.println("Finished constructing convex hulls.");
-            timeStage3 = System.currentTimeMillis() - beforeTime;
-            int stage3NumPolygons = polygons.size();
-            
-            beforeTime = System.currentTimeMillis();
-            // create the visbilitly graph
-            System.out.print("Constructing visibility graph...");
-            SimpleGraph graph = GeometricOperations.polygonsToGraph(polygons, 1.2, 0, imageRaw.getHeight(), 0, imageRaw.getWidth());
-            System.out.println("Finished constructing convex hulls.");
-            timeStage4 = System.currentTimeMillis() - beforeTime;
-            
-            System.out.print("Outputting images....");
-            BufferedImage imageOutClusters = null;
-            BufferedImage imageOutSaliency = null;
-            BufferedImage imageOutGroups = null;
-            BufferedImage imageOutThreshold = null;
-            BufferedImage imageOutPolygons = null;
-            if (showProgressImages) {
-                imageOutClusters = new BufferedImage(imageRaw.getWidth(), imageRaw.getHeight(), BufferedImage.TYPE_INT_RGB);
-                imageOutSaliency = new BufferedImage(imageRaw.getWidth(), imageRaw.getHeight(), BufferedImage.TYPE_INT_RGB);
-                imageOutGroups = new BufferedImage(imageRaw.getWidth(), imageRaw.getHeight(), BufferedImage.TYPE_INT_RGB);
-                imageOutThreshold = new BufferedImage(imageRaw.getWidth(), imageRaw.getHeight(), BufferedImage.TYPE_INT_RGB);
-                imageOutPolygons = new BufferedImage(imageRaw.getWidth(), imageRaw.getHeight(), BufferedImage.TYPE_INT_RGB); 
-            }            
-            BufferedImage imageOutGraph = new BufferedImage(imageRaw.getWidth(), imageRaw.getHeight(), BufferedImage.TYPE_INT_RGB); 
-            BufferedImage overlayImage = new BufferedImage(imageRaw.getWidth(), imageRaw.getHeight(), BufferedImage.TYPE_INT_RGB); 
-            for (int i = 0; i < imageRaw.getWidth(); i++) {
-                for (int j = 0; j < imageRaw.getHeight(); j++) {  
-                    if (showProgressImages) {
-                        imageOutClusters.setRGB(i, j, distinctColors[ clusterMembership[i][j] % distinctColors.length ].getRGB());
+            return;
+        }
+        config.verbose = true;
+        processImage(new File(input), new Pipeline(config), options, writer);
+    }
 
-                        int srank = 0;
-                        for (int s = 0; s < clusterSaliencyOrdering.length; s++)
-                            if (clusterMembership[i][j] == clusterSaliencyOrdering[s])
-                                srank = s;
-                        int saliencyValue = (int)(255.0 * ((numClusters - srank) / (double)numClusters));
-                        int sliencyNotRed = (srank == 0) ? 0 : saliencyValue;
-                        sliencyNotRed = (srank == 1) ? 128 : sliencyNotRed;
-                        imageOutSaliency.setRGB(i, j, (new Color(saliencyValue, sliencyNotRed, sliencyNotRed)).getRGB());
+    /**
+     * Run the HTTP service until the JVM is stopped.
+     * @param args serve, the version, then the optional settings
+     */
+    private static void serve(String[] args) {
+        PipelineConfig config = new PipelineConfig();
+        try {
+            config.method = PipelineConfig.Method.fromVersion(Integer.parseInt(args[1]));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid version number");
+            return;
+        }
+        int port = 8080;
+        int numWorkers = 0;
+        int queueCapacity = 16;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].matches("port=[0-9]+"))
+                port = Integer.parseInt(args[i].substring(5));
+            else if (args[i].matches("workers=[0-9]+"))
+                numWorkers = Integer.parseInt(args[i].substring(8));
+            else if (args[i].matches("queue=[0-9]+"))
+                queueCapacity = Integer.parseInt(args[i].substring(6));
+            else if (args[i].startsWith("cache=") && args[i].length() > 6)
+                config.cacheDirectory = new File(args[i].substring(6));
+            else
+                System.err.println("Unknown flag " + args[i] + " ignored");
+        }
+        try {
+            GraphService service = new GraphService(config, port, numWorkers, queueCapacity);
+            service.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> service.stop(1)));
+            System.out.println("Listening on http://localhost:" + service.getPort() + "/graph");
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+    }
 
-                        imageOutThreshold.setRGB(i, j, (thresholdNoEdgeImage[i][j] ? Color.BLACK : Color.WHITE).getRGB()); 
-                        imageOutGroups.setRGB(i, j, Color.WHITE.getRGB()); // clear the groups image right now.
-                    }
-                    overlayImage.setRGB(i, j, imageRaw.getRGB(i, j));  // copy the raw image for the overlay image.
-                    imageOutGraph.setRGB(i, j, imageRaw.getRGB(i, j)); 
-                }
-            } 
-            
-            if (showProgressImages) {
-                // output the groups image and polgons.
-                int groupIndex = 0;
-                for (ArrayList<SimplePoint> group : groups) { 
-                    for (SimplePoint p : group) {
-                        imageOutGroups.setRGB((int)p.x, (int)p.y, distinctColors[ groupIndex % distinctColors.length ].getRGB());
-                    }
-                    groupIndex++; 
-                }  
+    /**
+     * Run the pipeline on one image file and hand all of its output files
+     * to a writer, which writes them into the current directory. They can
+     * still be being written when this returns; close the writer to wait
+     * for them. The jobs only use what the result lets them keep (see
+     * Pipeline.Result), so the pipeline can go on to the next image at
+     * once. Messages are only printed if the pipeline's config is verbose;
+     * errors are always printed.
+     * @param input The image file
+     * @param pipeline The pipeline to run, with the settings to use
+     * @param options What to write
+     * @param writer The writer to write the files with. The debug images are written in its format.
+     * @return What the pipeline made, or null if the image couldn't be read.
+     */
+    public static Pipeline.Result processImage(File input, Pipeline pipeline, RunOptions options, OutputWriter writer) {
+        PipelineConfig config = pipeline.getConfig();
+        boolean showProgressImages = options.showProgressImages;
+        OutputWriter.ImageFormat debugFormat = writer.getDebugImageFormat();
+        // a ground truth image read in tiles is never decoded in one piece.
+        boolean tiled = (config.method == PipelineConfig.Method.GROUND_TRUTH && options.tiledInput);
+        BufferedImage imageRaw = null; // The initial input image.
+        if (!tiled) {
+            try {
+                imageRaw = (BufferedImage) ImageIO.read(input);
+            } catch(Exception e) {
+                System.err.println(e);
             }
-            // output the polygons image at the same time.
-            Graphics2D gOverlay = (Graphics2D)overlayImage.getGraphics();
-            Graphics2D g = null;
-            if (showProgressImages) {
-                g = (Graphics2D)imageOutPolygons.getGraphics();
-                g.setColor(Color.WHITE);
-                g.fillRect(0, 0, imageOutPolygons.getWidth(), imageOutPolygons.getHeight());
-                g.setStroke(new BasicStroke(2));
+            if (imageRaw == null) {
+                System.err.println("Could not read " + input);
+                return null;
             }
-            gOverlay.setStroke(new BasicStroke(2));
-            int polyIndex = 0;
-            for (ArrayList<SimplePoint> polygon : polygons) { 
-                // output this group as a polygon.
-                int[] poly_x_points = new int[ polygon.size() ];
-                int[] poly_y_points = new int[ polygon.size() ];
-                int pIndex = 0;
-                for (SimplePoint p : polygon) {
-                    poly_x_points[pIndex] = (int)p.x;
-                    poly_y_points[pIndex] = (int)p.y;
-                    pIndex++;
-                }
-                polyIndex++;
-                if (showProgressImages)
-                    g.setColor(distinctColors[ polyIndex % distinctColors.length ]);
-                gOverlay.setColor(distinctColors[ polyIndex % distinctColors.length ]);
-                for (int i = 1; i < poly_x_points.length; i++) { 
-                    if (showProgressImages)
-                        g.drawLine(poly_x_points[i - 1], poly_y_points[i - 1], poly_x_points[i], poly_y_points[i]); 
-                    gOverlay.drawLine(poly_x_points[i - 1], poly_y_points[i - 1], poly_x_points[i], poly_y_points[i]); 
+            if (config.verbose)
+                System.out.println("Loaded image successfully");
+        }
+        String clusteringMethod = config.method.getName();
+        String outputStrPrefix = outputImgStr(input.getPath()) + "-v" + clusteringMethod;
+        // get that output name by adding _out to the end of the input image name
+        File outputImageClusters = new File(outputStrPrefix + "_clusters." + debugFormat.getExtension());
+        File outputImageSaliency = new File(outputStrPrefix + "_saliency." + debugFormat.getExtension());
+        File outputImageThreshold = new File(outputStrPrefix + "_threshold." + debugFormat.getExtension());
+        File outputImageGroups = new File(outputStrPrefix + "_groups." + debugFormat.getExtension());
+        File outputImagePolygons = new File(outputStrPrefix + "_polygons." + debugFormat.getExtension());
+        
+        File outputImageOverlay = new File(outputStrPrefix + "_overlay" + ".png");
+        File outputImageGraph = new File(outputStrPrefix + "_graph" + ".png");
+        File outputJsonGraph = new File(outputStrPrefix + "_graph.json" + (options.gzipGraph ? ".gz" : ""));
+        File outputBinaryGraph = new File(outputStrPrefix + "_graph.bin");
+        File outputHierarchy = new File(outputStrPrefix + "_graph.ch");
+        File outputCoarseGraph = new File(outputStrPrefix + "_coarse_graph.json" + (options.gzipGraph ? ".gz" : ""));
+        String timeStamp = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss").format(new Date());
+        File outputCsvRuntime = new File(outputStrPrefix + "_runtime_" + timeStamp + ".csv");
+        Pipeline.Result result;
+        BufferedImage overlayImage = null;
+        // the output images of an image read in tiles are made smaller, so
+        // the edge mask is the only thing the size of the image.
+        final int scale = tiled ? TILED_IMAGE_SCALE : 1;
+        if (tiled) {
+            long beforeTime = System.currentTimeMillis();
+            if (config.verbose)
+                System.out.print("Finding obstacle edges tile by tile... ");
+            EdgeMask edges;
+            try (TiledImageSource source = new TiledImageSource(input, 512, 1, 1)) {
+                // the overlay is filled in from the same tiles.
+                overlayImage = new BufferedImage((source.getWidth() + scale - 1) / scale,
+                        (source.getHeight() + scale - 1) / scale, BufferedImage.TYPE_INT_RGB);
+                edges = TiledThreshold.groundTruthEdges(source, overlayImage, scale);
+            } catch (IOException e) {
+                System.err.println(e);
+                return null;
+            }
+            if (config.verbose)
+                System.out.println("Finished finding obstacle edges.");
+            long timeTiles = System.currentTimeMillis() - beforeTime;
+            result = pipeline.processEdges(edges);
+            result.timeStage1cluster = timeTiles;
+        } else {
+            result = pipeline.process(imageRaw);
+            overlayImage = DebugRenderer.copyOf(imageRaw, pipeline.getWorkers());  // copy the raw image for the overlay image.
+            imageRaw = null;  // only the copy is needed from here on.
+        }
+        final int imageWidth = result.width;
+        final int imageHeight = result.height;
+        final int outputWidth = overlayImage.getWidth();
+        final int outputHeight = overlayImage.getHeight();
+        int numClusters = config.numClusters;
+        LabelMap clusterMembership = result.clusterMembership;
+        int[] clusterSaliencyOrdering = result.clusterSaliencyOrdering;
+        EdgeMask thresholdNoEdgeImage = result.edges;
+        ArrayList< ArrayList<SimplePoint> > groups = result.groups;
+        ArrayList< ArrayList<SimplePoint> > polygons = result.polygons;
+        SimpleGraph graph = result.graph;
+        int stage2NumGroups = groups.size();
+        int stage3NumPolygons = polygons.size();
+        
+        if (config.verbose)
+            System.out.print("Outputting images....");
+        WorkerPool workers = pipeline.getWorkers();
+        BufferedImage imageOutClusters = null;
+        BufferedImage imageOutSaliency = null;
+        BufferedImage imageOutGroups = null;
+        BufferedImage imageOutThreshold = null;
+        BufferedImage imageOutPolygons = null;
+        if (showProgressImages) {
+            if (clusterMembership != null) {  // there are no clusters when stage 1 was done in tiles.
+                imageOutClusters = DebugRenderer.labelImage(clusterMembership, 
+                        DebugRenderer.paletteColors(distinctColors, numClusters), workers);
+                imageOutSaliency = DebugRenderer.labelImage(clusterMembership, 
+                        DebugRenderer.saliencyColors(clusterSaliencyOrdering, numClusters), workers);
+            }
+            imageOutThreshold = DebugRenderer.maskImage(thresholdNoEdgeImage, scale,
+                    Color.BLACK.getRGB(), Color.WHITE.getRGB(), workers);
+            imageOutGroups = DebugRenderer.filledImage(outputWidth, outputHeight, Color.WHITE.getRGB());
+            imageOutPolygons = new BufferedImage(outputWidth, outputHeight, BufferedImage.TYPE_INT_RGB); 
+        }            
+        BufferedImage imageOutGraph = DebugRenderer.copyOf(overlayImage, workers); 
+        
+        if (showProgressImages) {
+            // output the groups image and polgons.
+            int groupIndex = 0;
+            for (ArrayList<SimplePoint> group : groups) { 
+                for (SimplePoint p : group) {
+                    imageOutGroups.setRGB((int)p.x / scale, (int)p.y / scale, distinctColors[ groupIndex % distinctColors.length ].getRGB());
                 }
-                if (showProgressImages)
-                    g.drawLine(poly_x_points[0], poly_y_points[0], poly_x_points[poly_x_points.length - 1], poly_y_points[poly_x_points.length - 1]); 
-                gOverlay.drawLine(poly_x_points[0], poly_y_points[0], poly_x_points[poly_x_points.length - 1], poly_y_points[poly_x_points.length - 1]); 
+                groupIndex++; 
             }  
-            
-            // output the graph
-            Graphics2D gGraph = (Graphics2D)imageOutGraph.getGraphics();
-            gGraph.setColor(Color.GREEN);
-            graph.edges.forEach((edge) -> {
-                gGraph.drawLine((int)edge.p0.x, (int)edge.p0.y, (int)edge.p1.x, (int)edge.p1.y);
+        }
+        // output the polygons image at the same time.
+        Graphics2D gOverlay = (Graphics2D)overlayImage.getGraphics();
+        Graphics2D g = null;
+        if (showProgressImages) {
+            g = (Graphics2D)imageOutPolygons.getGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, imageOutPolygons.getWidth(), imageOutPolygons.getHeight());
+            g.setStroke(new BasicStroke(2));
+        }
+        gOverlay.setStroke(new BasicStroke(2));
+        int polyIndex = 0;
+        for (ArrayList<SimplePoint> polygon : polygons) { 
+            // output this group as a polygon.
+            int[] poly_x_points = new int[ polygon.size() ];
+            int[] poly_y_points = new int[ polygon.size() ];
+            int pIndex = 0;
+            for (SimplePoint p : polygon) {
+                poly_x_points[pIndex] = (int)p.x / scale;
+                poly_y_points[pIndex] = (int)p.y / scale;
+                pIndex++;
+            }
+            polyIndex++;
+            if (showProgressImages)
+                g.setColor(distinctColors[ polyIndex % distinctColors.length ]);
+            gOverlay.setColor(distinctColors[ polyIndex % distinctColors.length ]);
+            for (int i = 1; i < poly_x_points.length; i++) { 
+                if (showProgressImages)
+                    g.drawLine(poly_x_points[i - 1], poly_y_points[i - 1], poly_x_points[i], poly_y_points[i]); 
+                gOverlay.drawLine(poly_x_points[i - 1], poly_y_points[i - 1], poly_x_points[i], poly_y_points[i]); 
+            }
+            if (showProgressImages)
+                g.drawLine(poly_x_points[0], poly_y_points[0], poly_x_points[poly_x_points.length - 1], poly_y_points[poly_x_points.length - 1]); 
+            gOverlay.drawLine(poly_x_points[0], poly_y_points[0], poly_x_points[poly_x_points.length - 1], poly_y_points[poly_x_points.length - 1]); 
+        }  
+        
+        // output the graph
+        Graphics2D gGraph = (Graphics2D)imageOutGraph.getGraphics();
+        gGraph.setColor(Color.GREEN);
+        graph.edges.forEach((edge) -> {
+            gGraph.drawLine((int)edge.p0.x / scale, (int)edge.p0.y / scale, (int)edge.p1.x / scale, (int)edge.p1.y / scale);
+        });
+        
+        writer.submit(outputJsonGraph.getName(), () -> GraphJsonWriter.write(graph, outputJsonGraph, options.gzipGraph));
+        writer.submit(outputBinaryGraph.getName(), () -> BinaryGraphFile.write(graph, outputBinaryGraph));
+        if (options.buildHierarchy) {
+            writer.submit(outputHierarchy.getName(), () -> {
+                if (config.verbose)
+                    System.out.print("Building contraction hierarchy...");
+                long hierarchyTime = System.currentTimeMillis();
+                ContractionHierarchy hierarchy = ContractionHierarchy.build(CsrGraph.fromSimpleGraph(graph));
+                hierarchy.save(outputHierarchy);
+                if (config.verbose)
+                    System.out.println("Finished contraction hierarchy in " + (System.currentTimeMillis() - hierarchyTime) + " ms.");
             });
-            
-            try {
-                PrintWriter out = new PrintWriter(outputJsonGraph);
-                out.println("{\"graph\":{");
-                out.println("\"directed\": false,");
-                out.println("\"nodes\": [");
-                for (int i = 0; i < graph.nodes.size(); i++) { 
-                    out.print("{\"id\": \"" + (graph.nodes.get(i).id) + "\"}"); 
-                    if (i != graph.nodes.size() - 1)
-                        out.println(",");
-                }
-                out.println("],");
-                
-                for (int i = 0; i < graph.edges.size(); i++) { 
-                    out.print("{\"source\": \"" + (graph.edges.get(i).p0.id) + "\","); 
-                    out.print("\"target\": \"" + (graph.edges.get(i).p1.id) + "\","); 
-                    out.print("\"metadata\": {\"weight\": " + (graph.edges.get(i).getWeight()) + "}}"); 
-                    if (i != graph.nodes.size() - 1)
-                        out.println(",");
-                }
-                out.println("],"); 
-                out.println("}}");
-                out.close();
-                
-                // output the csv runtime data
-                PrintWriter outCsv = new PrintWriter(outputCsvRuntime);
+        }
+        if (options.buildCoarseGraph) {
+            writer.submit(outputCoarseGraph.getName(), () -> {
+                HierarchicalGraph hierarchical = new HierarchicalGraph(polygons, config.paddingScale,
+                        0, imageHeight, 0, imageWidth,
+                        HierarchicalGraph.DEFAULT_MERGE_DISTANCE, HierarchicalGraph.DEFAULT_CORRIDOR_WIDTH);
+                SimpleGraph coarseGraph = hierarchical.buildCoarseGraph();
+                if (config.verbose)
+                    System.out.println("Coarse graph: " + hierarchical.getCoarsePolygons().size() + " obstacles from "
+                            + polygons.size() + " polygons, " + coarseGraph.edges.size() + " edges.");
+                GraphJsonWriter.write(coarseGraph, outputCoarseGraph, options.gzipGraph);
+            });
+        }
+        
+        // output the csv runtime data
+        final long[] stageTimes = { result.timeTextures, result.timeStage1cluster, result.timeStage1saliency, 
+                result.timeStage2, result.timeStage3, result.timeStage4 };
+        writer.submit(outputCsvRuntime.getName(), () -> {
+            try (PrintWriter outCsv = new PrintWriter(outputCsvRuntime)) {
                 outCsv.println("Runtime Name," + outputStrPrefix);
-                outCsv.println("Input Image Width," + (imageRaw.getWidth()));
-                outCsv.println("Input Image Height," + (imageRaw.getHeight()));
+                outCsv.println("Input Image Width," + imageWidth);
+                outCsv.println("Input Image Height," + imageHeight);
                 outCsv.println("Number Groups Stage 2," + stage2NumGroups);
                 outCsv.println("Number Polygons Stage 3," + stage3NumPolygons);
                 outCsv.println("Number Nodes in Output Graph," + graph.nodes.size());
                 outCsv.println("Number Edges in Output Graph," + graph.edges.size());
-                outCsv.println("Texture Calculation Time," + timeTextures);
-                outCsv.println("Stage 1 Cluster/Segmentation Time," + timeStage1cluster);
-                outCsv.println("Stage 1 Saliency Region Time," + timeStage1saliency);
-                outCsv.println("Stage 2 Grouping Time," + timeStage2);
-                outCsv.println("Stage 3 Polygon Construction Time," + timeStage3);
-                outCsv.println("Stage 4 Graph Construction Time," + timeStage4);
-                outCsv.close();
-                
-                if (showProgressImages) {
-                    ImageIO.write(imageOutClusters, "png", outputImageClusters); 
-                    ImageIO.write(imageOutSaliency, "png", outputImageSaliency);
-                    ImageIO.write(imageOutGroups, "png", outputImageGroups);
-                    ImageIO.write(imageOutThreshold, "png", outputImageThreshold);
-                    ImageIO.write(imageOutPolygons, "png", outputImagePolygons);
-                }
-                ImageIO.write(overlayImage, "png", outputImageOverlay);
-                ImageIO.write(imageOutGraph, "png", outputImageGraph);
-            } catch(Exception e) {
-                System.err.println(e);
-            } 
-            System.out.println("Done.");
-            
+                outCsv.println("Texture Calculation Time," + stageTimes[0]);
+                outCsv.println("Stage 1 Cluster/Segmentation Time," + stageTimes[1]);
+                outCsv.println("Stage 1 Saliency Region Time," + stageTimes[2]);
+                outCsv.println("Stage 2 Grouping Time," + stageTimes[3]);
+                outCsv.println("Stage 3 Polygon Construction Time," + stageTimes[4]);
+                outCsv.println("Stage 4 Graph Construction Time," + stageTimes[5]);
+            }
+        });
+        
+        if (showProgressImages) {
+            if (imageOutClusters != null) {
+                writer.writeDebugImage(imageOutClusters, outputImageClusters); 
+                writer.writeDebugImage(imageOutSaliency, outputImageSaliency);
+            }
+            writer.writeDebugImage(imageOutGroups, outputImageGroups);
+            writer.writeDebugImage(imageOutThreshold, outputImageThreshold);
+            writer.writeDebugImage(imageOutPolygons, outputImagePolygons);
         }
-    } 
+        writer.writeImage(overlayImage, outputImageOverlay);
+        writer.writeImage(imageOutGraph, outputImageGraph);
+        if (config.verbose)
+            System.out.println("Done.");
+        return result;
+    }
     
     /**
      * Given a file input name, transform it to an output name.
@@ -0,0 +1,247 @@
+
+package polyfromimagecombinedspring;
+
+import java.awt.geom.Line2D;
+import java.util.ArrayList;
+
+/**
+ * A uniform grid over the edges of a set of polygons, used to speed up
+ * the visibility tests of the graph construction stage. Every polygon
+ * edge is stored in each grid cell it passes through, so a line test
+ * only has to look at the edges in the cells along the line's path
+ * instead of every edge of every polygon. Each polygon also keeps its
+ * bounding box so whole polygons can be rejected before any of their
+ * edges are tested.
+ *
+ * The index is never modified after it is built, so it can be shared
+ * by many threads at once.
+ */
+public class SegmentIndex {
+
+    // how much to grow cells and boxes by so that touching lines are never missed.
+    private static final double EPS = 1e-7;
+    // the most cells the grid will have along one axis.
+    private static final int MAX_CELLS_PER_AXIS = 1024;
+
+    // the edges, stored as x0, y0, x1, y1 for each edge.
+    private final double[] segments;
+    private final int[] segmentPoly;
+    // true if some polygon has a single point, which makes a zero length edge.
+    private final boolean hasPointSegments;
+    // the bounding box of each polygon, stored as minX, minY, maxX, maxY.
+    private final double[] polyBounds;
+
+    private final double originX, originY, cellSize;
+    private final int cols, rows;
+    // cellStart[c] to cellStart[c + 1] are the entries in cellSegments for cell c.
+    private final int[] cellStart;
+    private final int[] cellSegments;
+
+    /**
+     * Build an index over the edges of the given polygons. The edges are
+     * the same ones lineCollidesPolys walks: each point and the one before it,
+     * wrapping around at the start of the polygon.
+     * @param polys The polygons to index
+     */
+    public SegmentIndex(ArrayList<ArrayList<SimplePoint>> polys) {
+        int numSegments = 0;
+        for (ArrayList<SimplePoint> poly : polys)
+            numSegments += poly.size();
+
+        segments = new double[numSegments * 4];
+        segmentPoly = new int[numSegments];
+        polyBounds = new double[polys.size() * 4];
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        boolean pointSegments = false;
+        int s = 0;
+        for (int p = 0; p < polys.size(); p++) {
+            ArrayList<SimplePoint> poly = polys.get(p);
+            double pMinX = Double.MAX_VALUE, pMinY = Double.MAX_VALUE;
+            double pMaxX = -Double.MAX_VALUE, pMaxY = -Double.MAX_VALUE;
+            for (int i = 0; i < poly.size(); i++) {
+                int prevIndex = i-1;
+                if (prevIndex < 0)
+                    prevIndex = poly.size() - 1;  // wrap around
+                segments[s * 4] = poly.get(prevIndex).x;
+                segments[s * 4 + 1] = poly.get(prevIndex).y;
+                segments[s * 4 + 2] = poly.get(i).x;
+                segments[s * 4 + 3] = poly.get(i).y;
+                segmentPoly[s] = p;
+                s++;
+                pMinX = Math.min(pMinX, poly.get(i).x);
+                pMinY = Math.min(pMinY, poly.get(i).y);
+                pMaxX = Math.max(pMaxX, poly.get(i).x);
+                pMaxY = Math.max(pMaxY, poly.get(i).y);
+            }
+            pointSegments |= (poly.size() == 1);
+            polyBounds[p * 4] = pMinX;
+            polyBounds[p * 4 + 1] = pMinY;
+            polyBounds[p * 4 + 2] = pMaxX;
+            polyBounds[p * 4 + 3] = pMaxY;
+            minX = Math.min(minX, pMinX);
+            minY = Math.min(minY, pMinY);
+            maxX = Math.max(maxX, pMaxX);
+            maxY = Math.max(maxY, pMaxY);
+        }
+        hasPointSegments = pointSegments;
+
+        if (numSegments == 0) {
+            originX = 0;
+            originY = 0;
+            cellSize = 1;
+            cols = 0;
+            rows = 0;
+            cellStart = new int[1];
+            cellSegments = new int[0];
+            return;
+        }
+
+        // aim for about one edge per cell.
+        double width = Math.max(maxX - minX, 1);
+        double height = Math.max(maxY - minY, 1);
+        double size = Math.sqrt((width * height) / numSegments);
+        size = Math.max(size, Math.max(width, height) / MAX_CELLS_PER_AXIS);
+        originX = minX - EPS;
+        originY = minY - EPS;
+        cellSize = size;
+        cols = Math.max(1, (int)Math.ceil((width + 2 * EPS) / size));
+        rows = Math.max(1, (int)Math.ceil((height + 2 * EPS) / size));
+
+        // count how many edges land in each cell, then fill them in.
+        int[] counts = new int[(cols * rows) + 1];
+        for (int i = 0; i < numSegments; i++) {
+            walkCells(segments[i * 4], segments[i * 4 + 1], segments[i * 4 + 2], segments[i * 4 + 3], (cell) -> {
+                counts[cell + 1]++;
+                return false;
+            });
+        }
+        for (int c = 0; c < cols * rows; c++)
+            counts[c + 1] += counts[c];
+        cellStart = counts.clone();
+        cellSegments = new int[counts[cols * rows]];
+        for (int i = 0; i < numSegments; i++) {
+            final int segment = i;
+            walkCells(segments[i * 4], segments[i * 4 + 1], segments[i * 4 + 2], segments[i * 4 + 3], (cell) -> {
+                cellSegments[counts[cell]++] = segment;
+                return false;
+            });
+        }
+    }
+
+    /**
+     * Return true if the given line touches any edge of the indexed polygons.
+     * This gives the same answer as GeometricOperations.lineCollidesPolys
+     * for the polygons the index was built from.
+     * @param line The line that is being tested
+     * @return True if the line collides with a polygon, false otherwise.
+     */
+    public boolean lineCollides(SimpleEdge line) {
+        return lineCollides(line.p0.x, line.p0.y, line.p1.x, line.p1.y);
+    }
+
+    /**
+     * Return true if the line from (x0, y0) to (x1, y1) touches any edge
+     * of the indexed polygons.
+     * @param x0
+     * @param y0
+     * @param x1
+     * @param y1
+     * @return True if the line collides with a polygon, false otherwise.
+     */
+    public boolean lineCollides(double x0, double y0, double x1, double y1) {
+        if (cols == 0)
+            return false;
+        // Line2D says two zero length lines always intersect, wherever they are.
+        if (hasPointSegments && x0 == x1 && y0 == y1)
+            return true;
+        double lMinX = Math.min(x0, x1) - EPS, lMaxX = Math.max(x0, x1) + EPS;
+        double lMinY = Math.min(y0, y1) - EPS, lMaxY = Math.max(y0, y1) + EPS;
+        return walkCells(x0, y0, x1, y1, (cell) -> {
+            for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                int s = cellSegments[k];
+                int p = segmentPoly[s];
+                // skip the edge if the line can't reach its polygon at all.
+                if (polyBounds[p * 4] > lMaxX || polyBounds[p * 4 + 2] < lMinX ||
+                        polyBounds[p * 4 + 1] > lMaxY || polyBounds[p * 4 + 3] < lMinY)
+                    continue;
+                if (Line2D.linesIntersect(x0, y0, x1, y1,
+                        segments[s * 4], segments[s * 4 + 1], segments[s * 4 + 2], segments[s * 4 + 3]))
+                    return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * The number of polygon edges in this index.
+     * @return
+     */
+    public int size() {
+        return segmentPoly.length;
+    }
+
+    // used to look at the cells along a line. Returning true stops the walk.
+    interface CellVisitor {
+        boolean visit(int cell);
+    }
+
+    /**
+     * Visit every cell the line from (x0, y0) to (x1, y1) passes through,
+     * one column of cells at a time. The rows covered in each column are
+     * widened a little so a line running along a cell border visits the
+     * cells on both sides of it.
+     * @return True if the visitor stopped the walk early.
+     */
+    private boolean walkCells(double x0, double y0, double x1, double y1, CellVisitor visitor) {
+        return walkCells(originX, originY, cellSize, cols, rows, x0, y0, x1, y1, visitor);
+    }
+
+    /**
+     * Visit the cells along a line, as above, in any grid of cols by rows
+     * square cells whose first cell starts at (originX, originY). Cells are
+     * numbered row by row. DynamicVisibilityGraph uses this with a grid it
+     * changes as polygons come and go.
+     * @return True if the visitor stopped the walk early.
+     */
+    static boolean walkCells(double originX, double originY, double cellSize, int cols, int rows,
+            double x0, double y0, double x1, double y1, CellVisitor visitor) {
+        // make the line go left to right.
+        if (x1 < x0) {
+            double t = x0; x0 = x1; x1 = t;
+            t = y0; y0 = y1; y1 = t;
+        }
+        double gridMaxX = originX + (cols * cellSize);
+        double gridMaxY = originY + (rows * cellSize);
+        if (x1 < originX || x0 > gridMaxX || Math.max(y0, y1) < originY || Math.min(y0, y1) > gridMaxY)
+            return false; // the line misses the grid entirely.
+
+        double dx = x1 - x0;
+        int startCol = clamp((int)Math.floor((x0 - EPS - originX) / cellSize), cols);
+        int endCol = clamp((int)Math.floor((x1 + EPS - originX) / cellSize), cols);
+        for (int c = startCol; c <= endCol; c++) {
+            // find the part of the line inside this column.
+            double colMinX = Math.max(x0, originX + (c * cellSize));
+            double colMaxX = Math.min(x1, originX + ((c + 1) * cellSize));
+            double yA, yB;
+            if (dx == 0 || colMaxX < colMinX) {
+                yA = y0;
+                yB = y1;
+            } else {
+                yA = y0 + ((colMinX - x0) / dx) * (y1 - y0);
+                yB = y0 + ((colMaxX - x0) / dx) * (y1 - y0);
+            }
+            int startRow = clamp((int)Math.floor((Math.min(yA, yB) - EPS - originY) / cellSize), rows);
+            int endRow = clamp((int)Math.floor((Math.max(yA, yB) + EPS - originY) / cellSize), rows);
+            for (int r = startRow; r <= endRow; r++) {
+                if (visitor.visit((r * cols) + c))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static int clamp(int cell, int numCells) {
+        return Math.max(0, Math.min(numCells - 1, cell));
+    }
+}
@@ -2,6 +2,7 @@
 package polyfromimagecombinedspring;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 
 /**
  *
@@ -16,4 +17,48 @@ public class SimpleGraph {
         nodes = new ArrayList<>();
         edges = new ArrayList<>();
     }
+    
+    /**
+     * Add a node to the graph. Its id is its index in nodes, so the ids of
+     * a graph count up from 0 and can be used to index arrays, and graphs
+     * built at the same time don't share a counter.
+     * @param x
+     * @param y
+     * @return The new node.
+     */
+    public SimpleNode addNode(double x, double y) {
+        SimpleNode node = new SimpleNode(x, y, nodes.size());
+        nodes.add(node);
+        return node;
+    }
+    
+    /**
+     * Give every node its index in nodes as its id again, after some
+     * nodes were taken out.
+     */
+    public void renumberNodes() {
+        for (int i = 0; i < nodes.size(); i++)
+            nodes.get(i).id = i;
+    }
+
+    /**
+     * A copy of the graph with nodes and edges of its own, which stays as
+     * it is while this graph is changed, for example by a
+     * DynamicVisibilityGraph.
+     * @return The copy.
+     */
+    public SimpleGraph copy() {
+        SimpleGraph copy = new SimpleGraph();
+        copy.nodes.ensureCapacity(nodes.size());
+        copy.edges.ensureCapacity(edges.size());
+        IdentityHashMap<SimpleNode, SimpleNode> copyOf = new IdentityHashMap<>(nodes.size());
+        for (SimpleNode node : nodes) {
+            SimpleNode nodeCopy = new SimpleNode(node.x, node.y, node.id);
+            copy.nodes.add(nodeCopy);
+            copyOf.put(node, nodeCopy);
+        }
+        for (SimpleEdge edge : edges)
+            copy.edges.add(new SimpleEdge(copyOf.get(edge.p0), copyOf.get(edge.p1), edge.getWeight()));
+        return copy;
+    }
 }
@@ -8,8 +8,8 @@ package polyfromimagecombinedspring;
 public class SimpleNode {
 
     public double x, y;
+    // the index of the node in its graph; see SimpleGraph.addNode.
     public int id;
-    private static int prev_id = 0;
     
     // cost for pathfinding
     public double cost;
@@ -17,11 +17,13 @@ public class SimpleNode {
     public SimpleNode pathParent;
     
     public SimpleNode(double x, double y) {
+        this(x, y, -1); // unassigned
+    }
+    
+    public SimpleNode(double x, double y, int id) {
         this.x = x;
         this.y = y;
-        this.id = prev_id;
-        prev_id++;
-        //this.id = -1; // unassigned
+        this.id = id;
         this.cost = Double.MAX_VALUE / 2;
         this.pathParent = null;
     }
@@ -0,0 +1,281 @@
+
+package polyfromimagecombinedspring;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+/**
+ * A directory of stage outputs, so a run with the same image and the same
+ * early settings can skip the stages it already did, for example when only
+ * the padding or grouping settings change.
+ *
+ * Each entry is named by a SHA-256 hash of everything that went into it:
+ * the stage 1 entry by the pixels and the clustering settings, the groups
+ * by the stage 1 hash and the grouping settings, and the polygons by the
+ * groups hash and the hull settings. An entry is never changed once it is
+ * written, so entries can be shared between runs and between the workers
+ * of a batch.
+ *
+ *   .labels  the saliency ordering, the LabelMap as it is (one byte per
+ *            pixel, row-major), and the edge pixels as one bit each
+ *   .groups  the point groups
+ *   .polys   the polygons
+ *
+ * An entry that can't be read is treated as missing.
+ */
+public class StageCache {
+
+    private static final int MAGIC = 0x56474343; // "VGCC"
+    private static final int VERSION = 3;
+
+    /**
+     * What stage 1 made for one image.
+     */
+    public static class Labels {
+        public LabelMap clusterMembership;
+        public int[] clusterSaliencyOrdering;
+        public EdgeMask edges;
+    }
+
+    private final File directory;
+
+    /**
+     * Use a directory as a cache. It is made if it doesn't exist.
+     * @param directory
+     * @throws IOException If the directory can't be made
+     */
+    public StageCache(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory())
+            throw new IOException("Can't make the cache directory " + directory);
+        this.directory = directory;
+    }
+
+    /**
+     * The key of the stage 1 entry for an image.
+     * @param image
+     * @param config
+     * @return
+     */
+    public static String labelsKey(BufferedImage image, PipelineConfig config) {
+        MessageDigest digest = newDigest();
+        digest.update(("labels " + VERSION + " " + config.method.getName() + " " + config.numClusters + " " +
+                config.textureWindow + " " + image.getWidth() + "x" + image.getHeight()).getBytes(StandardCharsets.UTF_8));
+        int width = image.getWidth();
+        int[] row = new int[width];
+        ByteBuffer bytes = ByteBuffer.allocate(width * 4);
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            bytes.clear();
+            bytes.asIntBuffer().put(row);
+            digest.update(bytes.array());
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * The key of the groups made from the stage 1 entry with the given key.
+     * @param labelsKey
+     * @param config
+     * @return
+     */
+    public static String groupsKey(String labelsKey, PipelineConfig config) {
+        return hash("groups " + labelsKey + " " + config.groupMinDistance + " " + config.groupMaxDistance + " " +
+                config.groupCutoffSize + " " + config.groupMinVariance);
+    }
+
+    /**
+     * The key of the polygons made from the groups with the given key.
+     * @param groupsKey
+     * @param config
+     * @return
+     */
+    public static String polygonsKey(String groupsKey, PipelineConfig config) {
+        return hash("polygons " + groupsKey + " " + config.hullMaxDistance);
+    }
+
+    /**
+     * Load a stage 1 entry.
+     * @param key
+     * @return The entry, or null if there isn't one.
+     */
+    public Labels loadLabels(String key) {
+        File file = entry(key, ".labels");
+        if (!file.isFile())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            checkHeader(in, file);
+            int width = in.readInt();
+            int height = in.readInt();
+            Labels labels = new Labels();
+            labels.clusterSaliencyOrdering = new int[ in.readInt() ];
+            for (int i = 0; i < labels.clusterSaliencyOrdering.length; i++)
+                labels.clusterSaliencyOrdering[i] = in.readInt();
+            labels.clusterMembership = new LabelMap(width, height);
+            in.readFully(labels.clusterMembership.getData());
+            labels.edges = new EdgeMask(width, height);
+            boolean[] mask = labels.edges.getData();
+            byte[] bits = new byte[(mask.length + 7) / 8];
+            in.readFully(bits);
+            for (int p = 0; p < mask.length; p++)
+                mask[p] = (bits[p >> 3] & (1 << (p & 7))) != 0;
+            return labels;
+        } catch (IOException e) {
+            System.err.println("Ignoring the cache entry " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Store a stage 1 entry.
+     * @param key
+     * @param clusterMembership
+     * @param clusterSaliencyOrdering
+     * @param edges
+     */
+    public void storeLabels(String key, LabelMap clusterMembership, int[] clusterSaliencyOrdering, EdgeMask edges) {
+        int width = edges.getWidth();
+        int height = edges.getHeight();
+        boolean[] mask = edges.getData();
+        store(entry(key, ".labels"), (out) -> {
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(clusterSaliencyOrdering.length);
+            for (int s : clusterSaliencyOrdering)
+                out.writeInt(s);
+            out.write(clusterMembership.getData());
+            byte[] bits = new byte[(mask.length + 7) / 8];
+            for (int p = 0; p < mask.length; p++) {
+                if (mask[p])
+                    bits[p >> 3] |= (byte)(1 << (p & 7));
+            }
+            out.write(bits);
+        });
+    }
+
+    /**
+     * Load the point groups with the given key.
+     * @param key
+     * @return The groups, or null if there aren't any.
+     */
+    public ArrayList<ArrayList<SimplePoint>> loadGroups(String key) {
+        return loadPointLists(entry(key, ".groups"));
+    }
+
+    public void storeGroups(String key, ArrayList<ArrayList<SimplePoint>> groups) {
+        storePointLists(entry(key, ".groups"), groups);
+    }
+
+    /**
+     * Load the polygons with the given key.
+     * @param key
+     * @return The polygons, or null if there aren't any.
+     */
+    public ArrayList<ArrayList<SimplePoint>> loadPolygons(String key) {
+        return loadPointLists(entry(key, ".polys"));
+    }
+
+    public void storePolygons(String key, ArrayList<ArrayList<SimplePoint>> polygons) {
+        storePointLists(entry(key, ".polys"), polygons);
+    }
+
+    private ArrayList<ArrayList<SimplePoint>> loadPointLists(File file) {
+        if (!file.isFile())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            checkHeader(in, file);
+            int numLists = in.readInt();
+            ArrayList<ArrayList<SimplePoint>> lists = new ArrayList<>();
+            for (int i = 0; i < numLists; i++) {
+                int size = in.readInt();
+                ArrayList<SimplePoint> list = new ArrayList<>();
+                for (int k = 0; k < size; k++)
+                    list.add(new SimplePoint(in.readDouble(), in.readDouble()));
+                lists.add(list);
+            }
+            return lists;
+        } catch (IOException e) {
+            System.err.println("Ignoring the cache entry " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private void storePointLists(File file, ArrayList<ArrayList<SimplePoint>> lists) {
+        store(file, (out) -> {
+            out.writeInt(lists.size());
+            for (ArrayList<SimplePoint> list : lists) {
+                out.writeInt(list.size());
+                for (SimplePoint p : list) {
+                    out.writeDouble(p.x);
+                    out.writeDouble(p.y);
+                }
+            }
+        });
+    }
+
+    private interface EntryWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Write an entry to a temporary file and move it into place, so a
+     * reader never sees half an entry.
+     */
+    private void store(File file, EntryWriter writer) {
+        File temp = null;
+        try {
+            temp = File.createTempFile(file.getName(), ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writer.write(out);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not write the cache entry " + file + ": " + e);
+            if (temp != null)
+                temp.delete();
+        }
+    }
+
+    private static void checkHeader(DataInputStream in, File file) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new IOException(file + " is not a cache entry of this version");
+    }
+
+    private File entry(String key, String extension) {
+        return new File(directory, key + extension);
+    }
+
+    private static String hash(String text) {
+        return toHex(newDigest().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error making a SHA-256 digest", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b & 0xFF));
+        return hex.toString();
+    }
+}
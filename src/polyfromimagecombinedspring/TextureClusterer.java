@@ -1,14 +1,11 @@
 
 package polyfromimagecombinedspring;
 
-import java.awt.Color;
-import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set; 
+import java.util.function.IntUnaryOperator;
 
 /**
  * This class will take in an input image and separate
@@ -17,175 +14,243 @@ import java.util.Set;
  */
 public class TextureClusterer {
 
+    // the sum of the feature differences is divided by this, as TextureDescription.similarity does.
+    private static final double FEATURE_DIVISOR = 15.0;
+
     /**
-     * Find the texture feature vector for the given image using the given sample size.
-     * @param imageRaw The input image
+     * Find the texture feature vector of every pixel of an image, using the
+     * given sample size. The features of pixel (x, y) start at
+     * ((y * width) + x) * TextureDescription.NUM_FEATURES.
+     * @param pixels The RGB of each pixel of the input image, row-major
+     * @param width
+     * @param height
      * @param textureSampleSize The sample size, also is the window size around each pixel
-     * @return An array of texture description objects for the input image.
+     * @param features Where to put the features, NUM_FEATURES for each pixel
      */
-    public static TextureDescription[] findTextureDescription(BufferedImage imageRaw, int textureSampleSize) {
-        TextureDescription[] textureDescriptions = new TextureDescription[imageRaw.getWidth() * imageRaw.getHeight()];
-        int textSampleHalf = (textureSampleSize + 1) / 2;
+    public static void findTextureFeatures(int[] pixels, int width, int height, int textureSampleSize, float[] features) {
+        int[] window = new int[ textureSampleSize * textureSampleSize ];
+        double[] description = new double[ TextureDescription.NUM_FEATURES ];
         // the texture of a pixel is described by the texture in a window around it.
-        for (int x = 0; x < imageRaw.getWidth(); x++) {
-            for (int y = 0; y < imageRaw.getHeight(); y++) {
-                Color[] windowColor = new Color[textureSampleSize * textureSampleSize];
-                // populate the window size with colors.
-                int localWX = 0;
-                for (int wx = x - textSampleHalf; wx < x + textSampleHalf; wx++) {
-                    int localWY = 0; // the window location
-                    if (localWX < textureSampleSize && localWY < textureSampleSize) {
-                        for (int wy = y - textSampleHalf; wy < y + textSampleHalf; wy++) {
-                            int realWX = wx; //Math.max(0, Math.min(imageRaw.getWidth() - 1, wx));
-                            int realWY = wy; //Math.max(0, Math.min(imageRaw.getHeight() - 1, wy));
-                            // System.out.print(realWX + ", " + realWY + " => ");
-                            if (realWX < 0) {
-                                realWX = Math.abs(realWX);
-                            } else if (realWX >= imageRaw.getWidth() - 1) {
-                                int diff = realWX - (imageRaw.getWidth() - 1);
-                                realWX = imageRaw.getWidth() - 1 - diff;
-                            }
-                            if (realWY < 0) {
-                                realWY = Math.abs(realWY);
-                            } else if (realWY >= imageRaw.getHeight() - 1) {
-                                int diff = realWY - (imageRaw.getHeight() - 1);
-                                realWY = imageRaw.getHeight() - 1 - diff;
-                            } 
-                            int wcIndex = Math.min((localWX * textureSampleSize) + localWY, windowColor.length - 1);
-                            windowColor[wcIndex] = new Color(imageRaw.getRGB(realWX, realWY));
-                            localWY++;
-                        }
-                    }
-                    localWX++;
-                } 
-                textureDescriptions[ (x * imageRaw.getHeight()) + y ] = new TextureDescription(windowColor);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                findTextureFeatures(pixels, width, height, x, y, textureSampleSize, window, description);
+                int offset = ((y * width) + x) * TextureDescription.NUM_FEATURES;
+                for (int f = 0; f < description.length; f++)
+                    features[offset + f] = (float)description[f];
             }
         }
-        return textureDescriptions;
+    }
+
+    /**
+     * Find the texture feature vector of one pixel. The window reaches
+     * (textureSampleSize + 1) / 2 pixels from it each way, and is mirrored
+     * at the borders of the image.
+     * @param pixels The RGB of each pixel of the input image, row-major
+     * @param width
+     * @param height
+     * @param x
+     * @param y
+     * @param textureSampleSize The window size around the pixel
+     * @param window Space for textureSampleSize * textureSampleSize pixels
+     * @param description Where to put the NUM_FEATURES features
+     */
+    public static void findTextureFeatures(int[] pixels, int width, int height, int x, int y,
+            int textureSampleSize, int[] window, double[] description) {
+        int textSampleHalf = (textureSampleSize + 1) / 2;
+        // populate the window size with colors.
+        int localWX = 0;
+        for (int wx = x - textSampleHalf; wx < x + textSampleHalf; wx++) {
+            int localWY = 0; // the window location
+            if (localWX < textureSampleSize && localWY < textureSampleSize) {
+                for (int wy = y - textSampleHalf; wy < y + textSampleHalf; wy++) {
+                    int realWX = wx;
+                    int realWY = wy;
+                    if (realWX < 0) {
+                        realWX = Math.abs(realWX);
+                    } else if (realWX >= width - 1) {
+                        int diff = realWX - (width - 1);
+                        realWX = width - 1 - diff;
+                    }
+                    if (realWY < 0) {
+                        realWY = Math.abs(realWY);
+                    } else if (realWY >= height - 1) {
+                        int diff = realWY - (height - 1);
+                        realWY = height - 1 - diff;
+                    } 
+                    int wcIndex = Math.min((localWX * textureSampleSize) + localWY, window.length - 1);
+                    window[wcIndex] = pixels[(realWY * width) + realWX];
+                    localWY++;
+                }
+            }
+            localWX++;
+        } 
+        TextureDescription.describe(window, textureSampleSize, description);
     }
     
     
     /**
      * Perform k means clustering for the given image with
-     * the given texture description.
-     * @param imageRaw The input image
-     * @param textureDescriptions The texture descriptions for the input image
+     * the given texture features.
+     * @param width
+     * @param height
+     * @param features The texture features of each pixel, from findTextureFeatures
      * @param numClusters The number of clusters
-     * @return A 2d array that is the same size as the input image
-     *  where each entry is the index of the cluster that pixel is a member of.
+     * @param labels Where to put the index of the cluster each pixel is a member of
+     * @return The centre of each cluster, NUM_FEATURES for each.
      */
-    public static int[][] textureClusteringIndices(BufferedImage imageRaw, 
-            TextureDescription[] textureDescriptions, int numClusters) {
-        // an array of indices referencing texture descriptions in the textureDescriptions array. 
-        TextureDescription[] centroids = new TextureDescription[ numClusters ];
+    public static double[] textureClusteringIndices(int width, int height, float[] features,
+            int numClusters, LabelMap labels) {
+        int numFeatures = TextureDescription.NUM_FEATURES;
+        int numPixels = width * height;
+        byte[] membership = labels.getData();
+        double[] centroids = new double[ numClusters * numFeatures ];
 
         // randomize the centroids.
         for (int i = 0; i < numClusters; i++) { 
-            int x = (i * 197) % imageRaw.getWidth();
-            int y = (i * 137) % imageRaw.getHeight(); 
-            centroids[i] = textureDescriptions[ (x * imageRaw.getHeight()) + y ];
+            int x = (i * 197) % width;
+            int y = (i * 137) % height; 
+            for (int f = 0; f < numFeatures; f++)
+                centroids[(i * numFeatures) + f] = features[(((y * width) + x) * numFeatures) + f];
         }
 
         int numComputations = 0;
         double averageDelta;
         while (numComputations < 1000) {
             // find the cluster membership of each point.
-            Arrays.stream(textureDescriptions).forEach((desc) -> {
-                int closest = 0;
-                double closeSim = centroids[0].similarity(desc);
-                for (int i = 0; i < centroids.length; i++) { 
-                    double s = centroids[i].similarity(desc);
-                    if (s < closeSim) {
-                        closeSim = s;
-                        closest = i;
-                    }
-                }
-                desc.cluster = closest; 
-            });
+            for (int p = 0; p < numPixels; p++)
+                membership[p] = (byte)closestTextureCentre(centroids, numClusters, features, p * numFeatures);
 
-            // recompute the centroids.
-            Map<Integer, Set<TextureDescription>> clusterMembership = new HashMap<>();
-            for (int i = 0; i < numClusters; i++) {
-                clusterMembership.put(i, new HashSet<>());
-            }
-            Arrays.stream(textureDescriptions).forEach((desc) -> {
-                clusterMembership.get(desc.cluster).add(desc);
-            });
-            // see how far the clusters moved to see if we keep iterating.
+            // recompute the centroids, and see how far they moved to see if we keep iterating.
+            double[] newCentroids = textureCentres(features, labels, numClusters);
             averageDelta = 0;
-            for (int i = 0; i < numClusters; i++) {
-                TextureDescription newCenter = new TextureDescription(clusterMembership.get(i));
-                double diff = centroids[i].similarity(newCenter);
-                averageDelta += diff;
-                centroids[i] = newCenter;
-            }
+            for (int i = 0; i < numClusters; i++)
+                averageDelta += textureDistance(centroids, i * numFeatures, newCentroids, i * numFeatures);
+            centroids = newCentroids;
             averageDelta /= numClusters;
             if (averageDelta < 0.01) {  // check if the delta is small enough to be done.
                 break;
             }
             numComputations++;
         }
-        
-        int[][] pixelClusterMembership = new int[ imageRaw.getWidth() ][ imageRaw.getHeight() ];
-        for (int i = 0; i < imageRaw.getWidth(); i++) {
-            for (int j = 0; j < imageRaw.getHeight(); j++) { 
-                pixelClusterMembership[i][j] = textureDescriptions[ (i * imageRaw.getHeight()) + j ].cluster;
+        return centroids;
+    }
+
+    /**
+     * The average features of the pixels in each cluster. A cluster with
+     * no pixels has a centre of NaNs, which is closest to nothing.
+     * @param features The texture features of each pixel
+     * @param labels The cluster of each pixel
+     * @param numClusters
+     * @return The centre of each cluster, NUM_FEATURES for each.
+     */
+    public static double[] textureCentres(float[] features, LabelMap labels, int numClusters) {
+        int numFeatures = TextureDescription.NUM_FEATURES;
+        byte[] membership = labels.getData();
+        double[] centres = new double[ numClusters * numFeatures ];
+        int[] counts = new int[ numClusters ];
+        for (int p = 0; p < membership.length; p++) {
+            int cluster = membership[p] & 0xFF;
+            counts[cluster]++;
+            int centre = cluster * numFeatures, offset = p * numFeatures;
+            for (int f = 0; f < numFeatures; f++)
+                centres[centre + f] += features[offset + f];
+        }
+        for (int i = 0; i < numClusters; i++) {
+            for (int f = 0; f < numFeatures; f++)
+                centres[(i * numFeatures) + f] /= counts[i];
+        }
+        return centres;
+    }
+
+    /**
+     * The cluster whose centre is nearest to some texture features. Ties
+     * go to the lowest cluster.
+     * @param centres The centre of each cluster, NUM_FEATURES for each
+     * @param numClusters
+     * @param features
+     * @param offset Where the features start
+     * @return The index of the nearest cluster.
+     */
+    public static int closestTextureCentre(double[] centres, int numClusters, float[] features, int offset) {
+        int numFeatures = TextureDescription.NUM_FEATURES;
+        int closest = 0;
+        double closeSim = textureDistance(centres, 0, features, offset);
+        for (int i = 0; i < numClusters; i++) { 
+            double s = textureDistance(centres, i * numFeatures, features, offset);
+            if (s < closeSim) {
+                closeSim = s;
+                closest = i;
             }
-        } 
-        return pixelClusterMembership;
+        }
+        return closest;
+    }
+
+    // the same difference as TextureDescription.similarity.
+    private static double textureDistance(double[] centres, int centre, float[] features, int offset) {
+        double sum = 0;
+        for (int f = 0; f < TextureDescription.NUM_FEATURES; f++)
+            sum += Math.abs(centres[centre + f] - features[offset + f]);
+        return sum / FEATURE_DIVISOR;
+    }
+
+    private static double textureDistance(double[] a, int offsetA, double[] b, int offsetB) {
+        double sum = 0;
+        for (int f = 0; f < TextureDescription.NUM_FEATURES; f++)
+            sum += Math.abs(a[offsetA + f] - b[offsetB + f]);
+        return sum / FEATURE_DIVISOR;
     }
     
     /**
-     * Perform k means clustering for the given image with
-     * the given texture description.
-     * @param imageRaw The input image
+     * Perform k means clustering for the given image on the colour of
+     * each pixel. A cluster that loses all of its pixels keeps its centre.
+     * @param width
+     * @param height
+     * @param pixels The RGB of each pixel of the input image, row-major
      * @param numClusters The number of clusters
-     * @return A 2d array that is the same size as the input image
-     *  where each entry is the index of the cluster that pixel is a member of.
+     * @param labels Where to put the index of the cluster each pixel is a member of
      */
-    public static int[][] colorClusteringIndices(BufferedImage imageRaw, 
-            ColorCluster[] colorsArray, int numClusters) {
-        // an array of indices referencing color values in the colorsArray array. 
-        ColorCluster[] centroids = new ColorCluster[ numClusters ];
+    public static void colorClusteringIndices(int width, int height, int[] pixels,
+            int numClusters, LabelMap labels) {
+        int numPixels = width * height;
+        byte[] membership = labels.getData();
+        // the centroids, as RGB.
+        int[] centroids = new int[ numClusters ];
         
         // randomize the centroids.
         for (int i = 0; i < numClusters; i++) { 
-            int x = (i * 197) % imageRaw.getWidth();
-            int y = (i * 137) % imageRaw.getHeight(); 
-            centroids[i] = colorsArray[ (x * imageRaw.getHeight()) + y ];
+            int x = (i * 197) % width;
+            int y = (i * 137) % height; 
+            centroids[i] = pixels[(y * width) + x];
         }
 
+        long[] totals = new long[ numClusters * 3 ];
+        int[] counts = new int[ numClusters ];
         int numComputations = 0;
         double averageDelta;
         while (numComputations < 1000) {
             // find the cluster membership of each point.
-            Arrays.stream(colorsArray).forEach((c) -> {
+            for (int p = 0; p < numPixels; p++) {
+                int rgb = pixels[p];
                 int closest = 0;
-                double closeSim = c.similarity(centroids[0]); // init val
-                for (int i = 0; i < centroids.length; i++) { 
-                    double s = c.similarity(centroids[i]);
+                double closeSim = colorDistance(rgb, centroids[0]); // init val
+                for (int i = 0; i < numClusters; i++) { 
+                    double s = colorDistance(rgb, centroids[i]);
                     if (s < closeSim) {
                         closeSim = s;
                         closest = i;
                     }
                 }
-                c.cluster = closest; 
-            });
-
-            // recompute the centroids.
-            Map<Integer, Set<ColorCluster>> clusterMembership = new HashMap<>();
-            for (int i = 0; i < numClusters; i++) {
-                clusterMembership.put(i, new HashSet<>());
+                membership[p] = (byte)closest;
             }
-            Arrays.stream(colorsArray).forEach((desc) -> {
-                clusterMembership.get(desc.cluster).add(desc);
-            });
-            // see how far the clusters moved to see if we keep iterating.
+
+            // recompute the centroids, and see how far they moved to see if we keep iterating.
+            colorTotals(pixels, membership, (p) -> p, totals, counts);
             averageDelta = 0;
             for (int i = 0; i < numClusters; i++) {
-                ColorCluster newCenter = new ColorCluster(clusterMembership.get(i));
-                double diff = centroids[i].similarity(newCenter);
-                averageDelta += diff;
+                if (counts[i] == 0)
+                    continue;
+                int newCenter = averageColor(totals, i * 3, counts[i]);
+                averageDelta += colorDistance(centroids[i], newCenter);
                 centroids[i] = newCenter;
             }
             averageDelta /= numClusters;
@@ -194,14 +259,42 @@ public class TextureClusterer {
             }
             numComputations++;
         }
-        
-        int[][] pixelClusterMembership = new int[ imageRaw.getWidth() ][ imageRaw.getHeight() ];
-        for (int i = 0; i < imageRaw.getWidth(); i++) {
-            for (int j = 0; j < imageRaw.getHeight(); j++) { 
-                pixelClusterMembership[i][j] = colorsArray[ (i * imageRaw.getHeight()) + j ].cluster;
-            }
-        } 
-        return pixelClusterMembership;
+    }
+
+    // the same difference as ColorCluster.similarity.
+    private static double colorDistance(int rgb, int other) {
+        int dr = ((other >> 16) & 0xFF) - ((rgb >> 16) & 0xFF);
+        int dg = ((other >> 8) & 0xFF) - ((rgb >> 8) & 0xFF);
+        int db = (other & 0xFF) - (rgb & 0xFF);
+        return Math.sqrt((dr * dr) + (dg * dg) + (db * db));
+    }
+
+    /**
+     * Add up the red, green and blue of the pixels of each cluster.
+     * @param pixels The RGB of each pixel
+     * @param membership The cluster of each entry
+     * @param pixelOfEntry The pixel each entry of the membership is read with
+     */
+    private static void colorTotals(int[] pixels, byte[] membership, IntUnaryOperator pixelOfEntry,
+            long[] totals, int[] counts) {
+        Arrays.fill(totals, 0);
+        Arrays.fill(counts, 0);
+        for (int e = 0; e < membership.length; e++) {
+            int cluster = membership[e] & 0xFF;
+            int rgb = pixels[pixelOfEntry.applyAsInt(e)];
+            counts[cluster]++;
+            totals[(cluster * 3)] += (rgb >> 16) & 0xFF;
+            totals[(cluster * 3) + 1] += (rgb >> 8) & 0xFF;
+            totals[(cluster * 3) + 2] += rgb & 0xFF;
+        }
+    }
+
+    // the average of count colours from their red, green and blue totals, rounded down like ColorCluster does.
+    private static int averageColor(long[] totals, int offset, int count) {
+        int red = (int)(totals[offset] / count);
+        int green = (int)(totals[offset + 1] / count);
+        int blue = (int)(totals[offset + 2] / count);
+        return (red << 16) | (green << 8) | blue;
     }
     
     
@@ -327,59 +420,49 @@ public class TextureClusterer {
      * the cluster membership, return an ordered array where 
      * each element is a cluster index, and they are ordered
      * according to saliency. 
-     * @param imageRaw
-     * @param textureDescription
+     * @param width
+     * @param height
+     * @param features The texture features of each pixel, from findTextureFeatures
      * @param clusterMembership
      * @param numClusters
      * @return A ranked ordering of cluster indices based on saliency. 
      */
-    public static int[] findSalientImageClusters(BufferedImage imageRaw, 
-        TextureDescription[] textureDescription, 
-        int[][] clusterMembership, int numClusters) { 
-        Map<Integer, Set<TextureDescription>> descByCluster = new HashMap<>();
-        for (int i = 0; i < textureDescription.length; i++) {
-            int xPos = i % imageRaw.getWidth();
-            int yPos = i / imageRaw.getWidth();
-            if (!descByCluster.containsKey(clusterMembership[xPos][yPos])) {
-                descByCluster.put(clusterMembership[xPos][yPos], new HashSet<>());
-            }
-            descByCluster.get(clusterMembership[xPos][yPos]).add(textureDescription[i]);
-        }
-        // find the average values for different clusters
-        TextureDescription[] clusterAverages = new TextureDescription[ numClusters ];
-        TextureDescription imageAverage;
-        for (int i = 0; i < clusterAverages.length; i++) {
-            clusterAverages[i] = new TextureDescription(descByCluster.get(i));
+    public static int[] findSalientImageClusters(int width, int height, float[] features,
+            LabelMap clusterMembership, int numClusters) { 
+        int numFeatures = TextureDescription.NUM_FEATURES;
+        double[] totals = new double[ numClusters * numFeatures ];
+        int[] counts = new int[ numClusters ];
+        byte[] labels = clusterMembership.getData();
+        for (int i = 0; i < labels.length; i++) {
+            // label i is paired with the features of pixel (i / height, i % height),
+            // as it was when the features were stored a column at a time.
+            int cluster = labels[i] & 0xFF;
+            int offset = ((((i % height) * width) + (i / height)) * numFeatures);
+            counts[cluster]++;
+            for (int f = 0; f < numFeatures; f++)
+                totals[(cluster * numFeatures) + f] += features[offset + f];
         }
-        int[] clusterSaliencyOrdering = new int[ numClusters ]; // order the clusters by saliency
-        double[] clusterSaliencyValues = new double[ numClusters ];
+        // find the average values for different clusters, and of the rest of the image.
+        double[] clusterAverages = new double[ numClusters * numFeatures ];
+        double[] averageOthers = new double[ numClusters * numFeatures ];
         for (int i = 0; i < numClusters; i++) {
-            clusterSaliencyOrdering[i] = i; // initial setup. 
-            Set<TextureDescription> others = new HashSet<>(); // calculate saliency of each region
+            int numOthers = 0;
             for (int k = 0; k < numClusters; k++) {
                 if (k != i) {
-                    others.addAll(descByCluster.get(k));
+                    numOthers += counts[k];
+                    for (int f = 0; f < numFeatures; f++)
+                        averageOthers[(i * numFeatures) + f] += totals[(k * numFeatures) + f];
                 }
             }
-            TextureDescription averageOthers = new TextureDescription(others);
-            clusterSaliencyValues[i] = (clusterAverages[i].similarity(averageOthers));
-        }
-        // sort the saliency result list.
-        for (int i = 0; i < numClusters - 1; i++) {
-            int min = i+1;
-            for (int j = i + 1; j < numClusters; j++) {
-                if (clusterSaliencyValues[ clusterSaliencyOrdering[j] ] < clusterSaliencyValues[ clusterSaliencyOrdering[min] ])
-                    min = j; 
+            for (int f = 0; f < numFeatures; f++) {
+                clusterAverages[(i * numFeatures) + f] = totals[(i * numFeatures) + f] / counts[i];
+                averageOthers[(i * numFeatures) + f] /= numOthers;
             }
-            int temp = clusterSaliencyOrdering[min];
-            clusterSaliencyOrdering[min] = clusterSaliencyOrdering[i];
-            clusterSaliencyOrdering[i] = temp;
         }
-        // System.out.println("The saliency values: ");
-        // for (int i =0; i  < numClusters; i++)
-        //     System.out.println(clusterSaliencyOrdering[i] + " => " + clusterSaliencyValues[ clusterSaliencyOrdering[i] ]);
-
-        return clusterSaliencyOrdering;
+        double[] clusterSaliencyValues = new double[ numClusters ];
+        for (int i = 0; i < numClusters; i++)
+            clusterSaliencyValues[i] = textureDistance(clusterAverages, i * numFeatures, averageOthers, i * numFeatures);
+        return orderBySaliency(clusterSaliencyValues);
     }
     
     
@@ -388,43 +471,51 @@ public class TextureClusterer {
      * the cluster membership, return an ordered array where 
      * each element is a cluster index, and they are ordered
      * according to saliency. 
-     * @param imageRaw
-     * @param colorsArray
+     * @param width
+     * @param height
+     * @param pixels The RGB of each pixel of the input image, row-major
      * @param clusterMembership
      * @param numClusters
      * @return A ranked ordering of cluster indices based on saliency. 
      */
-    public static int[] findSalientImageClustersColor(BufferedImage imageRaw, 
-        ColorCluster[] colorsArray, 
-        int[][] clusterMembership, int numClusters) { 
-        Map<Integer, Set<ColorCluster>> colorByCluster = new HashMap<>();
-        for (int i = 0; i < colorsArray.length; i++) {
-            int xPos = i % imageRaw.getWidth();
-            int yPos = i / imageRaw.getWidth();
-            if (!colorByCluster.containsKey(clusterMembership[xPos][yPos])) {
-                colorByCluster.put(clusterMembership[xPos][yPos], new HashSet<>());
-            }
-            colorByCluster.get(clusterMembership[xPos][yPos]).add(colorsArray[i]);
-        }
-        // find the average values for different clusters
-        ColorCluster[] clusterAverages = new ColorCluster[ numClusters ];
-        ColorCluster imageAverage;
-        for (int i = 0; i < clusterAverages.length; i++) {
-            clusterAverages[i] = new ColorCluster(colorByCluster.get(i));
-        }
-        int[] clusterSaliencyOrdering = new int[ numClusters ]; // order the clusters by saliency
+    public static int[] findSalientImageClustersColor(int width, int height, int[] pixels,
+            LabelMap clusterMembership, int numClusters) { 
+        long[] totals = new long[ numClusters * 3 ];
+        int[] counts = new int[ numClusters ];
+        // label i is paired with pixel (i / height, i % height), as it was
+        // when the colours were stored a column at a time.
+        colorTotals(pixels, clusterMembership.getData(), (i) -> ((i % height) * width) + (i / height), totals, counts);
+        long[] otherTotals = new long[3];
         double[] clusterSaliencyValues = new double[ numClusters ];
         for (int i = 0; i < numClusters; i++) {
-            clusterSaliencyOrdering[i] = i; // initial setup. 
-            Set<ColorCluster> others = new HashSet<>(); // calculate saliency of each region
+            Arrays.fill(otherTotals, 0);
+            int numOthers = 0;
             for (int k = 0; k < numClusters; k++) {
                 if (k != i) {
-                    others.addAll(colorByCluster.get(k));
+                    numOthers += counts[k];
+                    for (int c = 0; c < 3; c++)
+                        otherTotals[c] += totals[(k * 3) + c];
                 }
             }
-            ColorCluster averageOthers = new ColorCluster(others);
-            clusterSaliencyValues[i] = (clusterAverages[i].similarity(averageOthers));
+            // a cluster with no pixels, or with all of them, can't be compared.
+            if (counts[i] == 0 || numOthers == 0)
+                clusterSaliencyValues[i] = Double.NaN;
+            else
+                clusterSaliencyValues[i] = colorDistance(averageColor(totals, i * 3, counts[i]),
+                        averageColor(otherTotals, 0, numOthers));
         }
+        return orderBySaliency(clusterSaliencyValues);
+    }
+
+    /**
+     * Order the clusters by their saliency values.
+     * @return The cluster indices, ranked.
+     */
+    private static int[] orderBySaliency(double[] clusterSaliencyValues) {
+        int numClusters = clusterSaliencyValues.length;
+        int[] clusterSaliencyOrdering = new int[ numClusters ]; // order the clusters by saliency
+        for (int i = 0; i < numClusters; i++)
+            clusterSaliencyOrdering[i] = i; // initial setup. 
         // sort the saliency result list.
         for (int i = 0; i < numClusters - 1; i++) {
             int min = i+1;
@@ -436,10 +527,6 @@ public class TextureClusterer {
             clusterSaliencyOrdering[min] = clusterSaliencyOrdering[i];
             clusterSaliencyOrdering[i] = temp;
         }
-        // System.out.println("The saliency values: ");
-        // for (int i =0; i  < numClusters; i++)
-        //     System.out.println(clusterSaliencyOrdering[i] + " => " + clusterSaliencyValues[ clusterSaliencyOrdering[i] ]);
-
         return clusterSaliencyOrdering;
     }
     
@@ -13,6 +13,9 @@ import java.util.Set;
 public class TextureDescription {
 
     protected enum Channel { RED, GREEN, BLUE };
+
+    // the number of features describe works out for each window.
+    public static final int NUM_FEATURES = 11;
     
     public int cluster; // the index of the cluster this texture description is a member of.
     public double avgRed, avgBlue, avgGreen;  // Color averages
@@ -28,30 +31,63 @@ public class TextureDescription {
      * @param imageRegion A 2D array of colors representing an image region.
      */
     public TextureDescription(Color imageRegion[]) {
-        // calculate the values
         cluster = 0;
         n = (int)(Math.sqrt(imageRegion.length)); // assuming the imageRegion[0].length == imageRegion.length
+        int[] rgb = new int[ imageRegion.length ];
+        for (int i = 0; i < rgb.length; i++)
+            rgb[i] = imageRegion[i].getRGB();
+        double[] features = new double[ NUM_FEATURES ];
+        describe(rgb, n, features);
+        avgRed = features[0];
+        avgBlue = features[1];
+        avgGreen = features[2];
+        stdRed = features[3];
+        stdBlue = features[4];
+        stdGreen = features[5];
+        localStdRed = features[6];
+        localStdBlue = features[7];
+        localStdGreen = features[8];
+        avgGsThreshold = features[9];
+        constantGsThreshold = features[10];
+        avgRedThreshold = 0;
+        avgGreenThreshold = 0;
+        avgBlueThreshold = 0;
+    }
+
+    /**
+     * Work out the features of a window of pixels, in the order similarity
+     * adds them up: the averages, the standard deviations, the local
+     * standard deviations, then the two grey threshold ratios. The three
+     * colour threshold ratios are always 0, so they are left out.
+     * @param region The RGB of each pixel of the window, n pixels at a time
+     * @param n The width and height of the window
+     * @param features Where to put the NUM_FEATURES features
+     */
+    static void describe(int[] region, int n, double[] features) {
         int n2 = n;
         double totalRed = 0;
         double totalGreen = 0;
         double totalBlue = 0;
         // calculate the means
         for (int i = 0; i < n; i++) { 
-            totalRed += imageRegion[i].getRed();
-            totalBlue += imageRegion[i].getGreen();
-            totalGreen += imageRegion[i].getBlue();
+            totalRed += red(region[i]);
+            totalBlue += green(region[i]);
+            totalGreen += blue(region[i]);
         }
-        avgRed = totalRed / n2;
-        avgBlue = totalBlue / n2;
-        avgGreen = totalGreen / n2;
+        double avgRed = totalRed / n2;
+        double avgBlue = totalBlue / n2;
+        double avgGreen = totalGreen / n2;
+        features[0] = avgRed;
+        features[1] = avgBlue;
+        features[2] = avgGreen;
         // calculate global standard deviation
-        stdRed = stdOfRegion(imageRegion, n, Channel.RED, avgRed, 0, n, 0, n);
-        stdBlue = stdOfRegion(imageRegion, n, Channel.BLUE, avgBlue, 0, n, 0, n);
-        stdGreen = stdOfRegion(imageRegion, n, Channel.GREEN, avgGreen, 0, n, 0, n); 
+        features[3] = stdOfRegion(region, n, Channel.RED, avgRed, 0, n, 0, n);
+        features[4] = stdOfRegion(region, n, Channel.BLUE, avgBlue, 0, n, 0, n);
+        features[5] = stdOfRegion(region, n, Channel.GREEN, avgGreen, 0, n, 0, n); 
         
-        localStdRed = 0;
-        localStdBlue = 0;
-        localStdGreen = 0;
+        double localStdRed = 0;
+        double localStdBlue = 0;
+        double localStdGreen = 0;
         // calculating the local standard deviation
         int window_split = 2; // on what axiss to split the window.
         int wsize = n / window_split;
@@ -62,51 +98,58 @@ public class TextureDescription {
                 double localAvgGreen = 0;
                 for (int i = out_i * wsize; i < (out_i + 1) * wsize; i++) {
                     for (int j = out_j * wsize; j < (out_j + 1) * wsize; j++) {
-                        localAvgRed += imageRegion[(i * n) + j].getRed();
-                        localAvgBlue += imageRegion[(i * n) + j].getBlue();
-                        localAvgGreen += imageRegion[(i * n) + j].getGreen();
+                        localAvgRed += red(region[(i * n) + j]);
+                        localAvgBlue += blue(region[(i * n) + j]);
+                        localAvgGreen += green(region[(i * n) + j]);
                     }
                 }
                 localAvgRed /= wsize * wsize;
                 localAvgBlue /= wsize * wsize;
                 localAvgGreen /= wsize * wsize;
                 
-                localStdRed += stdOfRegion(imageRegion, n, Channel.RED, localAvgRed, 
+                localStdRed += stdOfRegion(region, n, Channel.RED, localAvgRed, 
                         out_i * wsize, (out_i + 1) * wsize, out_j * wsize, (out_j + 1) * wsize);
-                localStdBlue += stdOfRegion(imageRegion, n, Channel.BLUE, localAvgBlue, 
+                localStdBlue += stdOfRegion(region, n, Channel.BLUE, localAvgBlue, 
                         out_i * wsize, (out_i + 1) * wsize, out_j * wsize, (out_j + 1) * wsize);
-                localStdGreen += stdOfRegion(imageRegion, n, Channel.GREEN, localAvgGreen, 
+                localStdGreen += stdOfRegion(region, n, Channel.GREEN, localAvgGreen, 
                         out_i * wsize, (out_i + 1) * wsize, out_j * wsize, (out_j + 1) * wsize);
             }
         }
         // average the standard deviation totals.
-        localStdRed /= window_split * window_split;
-        localStdBlue /= window_split * window_split;
-        localStdGreen /= window_split * window_split;
+        features[6] = localStdRed / (window_split * window_split);
+        features[7] = localStdBlue / (window_split * window_split);
+        features[8] = localStdGreen / (window_split * window_split);
         
         
         // threshold the image and find the ratio of white to black images
-        int[] gsRegion = new int[ imageRegion.length ];
         int totalGS = 0;
-        for (int i = 0; i < gsRegion.length; i++) {
-            gsRegion[i] = (imageRegion[i].getRed() + imageRegion[i].getGreen() + imageRegion[i].getBlue()) / 3;
-            totalGS += gsRegion[i];
-        }
-        totalGS /= gsRegion.length;
-        boolean[] thresholdGSRegion = new boolean[ gsRegion.length ];
-        boolean[] thresholdConstact = new boolean[ gsRegion.length ];
+        for (int i = 0; i < region.length; i++)
+            totalGS += grey(region[i]);
+        totalGS /= region.length;
         int numAvgTrue = 0, numConstTrue = 0;
-        int numAvgRedTrue = 0,  numAvgGreenTrue = 0,  numAvgBlueTrue = 0;
-        for (int i = 0; i < gsRegion.length; i++) {
-            thresholdGSRegion[i] = gsRegion[i] >= totalGS; 
-            numAvgTrue += (thresholdGSRegion[i] ? 1 : 0);
-            numConstTrue += (gsRegion[i] > 128 ? 1 : 0);
+        for (int i = 0; i < region.length; i++) {
+            int gs = grey(region[i]);
+            numAvgTrue += (gs >= totalGS ? 1 : 0);
+            numConstTrue += (gs > 128 ? 1 : 0);
         }
-        avgGsThreshold = (int)( 255 * ((double)numAvgTrue / (double)thresholdGSRegion.length));
-        constantGsThreshold = (int)( 255 * ((double)numConstTrue / (double)thresholdGSRegion.length));
-        avgRedThreshold = (int)( 255 * ((double)numAvgRedTrue / (double)thresholdGSRegion.length));
-        avgGreenThreshold = (int)( 255 * ((double)numAvgGreenTrue / (double)thresholdGSRegion.length));
-        avgBlueThreshold = (int)( 255 * ((double)numAvgBlueTrue / (double)thresholdGSRegion.length));
+        features[9] = (int)( 255 * ((double)numAvgTrue / (double)region.length));
+        features[10] = (int)( 255 * ((double)numConstTrue / (double)region.length));
+    }
+
+    private static int red(int rgb) {
+        return (rgb >> 16) & 0xFF;
+    }
+
+    private static int green(int rgb) {
+        return (rgb >> 8) & 0xFF;
+    }
+
+    private static int blue(int rgb) {
+        return rgb & 0xFF;
+    }
+
+    private static int grey(int rgb) {
+        return (red(rgb) + green(rgb) + blue(rgb)) / 3;
     }
     
    /**
@@ -152,20 +195,18 @@ public class TextureDescription {
     }
     
     // private function for making calculating the local average standard deviation easier 
-    private double stdOfRegion(Color imgReg[], int n, Channel c, double avg, int startI, int endI, int startJ, int endJ) {
-        //System.out.println("startI=" + startI + ", endI=" + endI + ", startJ=" + startJ + ", endJ=" + endJ);
+    private static double stdOfRegion(int imgReg[], int n, Channel c, double avg, int startI, int endI, int startJ, int endJ) {
         double std = 0;
         for (int i = startI; i < endI; i++) {
             for (int j = startJ; j < endJ; j++) {
                 switch(c) {
-                    case RED:   std += Math.pow(avg - imgReg[(i * n) + j].getRed(), 2);      break;
-                    case GREEN: std += Math.pow(avg - imgReg[(i * n) + j].getGreen(), 2);    break;
-                    case BLUE:  std += Math.pow(avg - imgReg[(i * n) + j].getBlue(), 2);      break;
+                    case RED:   std += Math.pow(avg - red(imgReg[(i * n) + j]), 2);      break;
+                    case GREEN: std += Math.pow(avg - green(imgReg[(i * n) + j]), 2);    break;
+                    case BLUE:  std += Math.pow(avg - blue(imgReg[(i * n) + j]), 2);      break;
                 }   
             }
         }
         int regionSize = endI - startI;
-        //System.out.println("The standard deviation is: " + Math.sqrt(std / Math.pow(imgReg.length - 1, 2)));
         return Math.sqrt(std / Math.pow(regionSize - 1, 2));
     }
     /**
@@ -0,0 +1,165 @@
+
+package polyfromimagecombinedspring;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Reads an image file one tile at a time, so a stage can work through a
+ * map image that is too big to decode in one piece. Each tile is decoded
+ * on its own with a source region, and comes with a halo of pixels from
+ * the tiles around it, so a stage that looks at the neighbours of a pixel
+ * (the edge test needs 1 pixel, a texture window needs half its size) gets
+ * the same answer at the edge of a tile as anywhere else.
+ *
+ * The image can also be subsampled while it is read, which keeps every
+ * n'th pixel in each direction. All coordinates are then in the smaller
+ * image. A source reads from one ImageReader, so it is used from one
+ * thread at a time.
+ */
+public class TiledImageSource implements AutoCloseable {
+
+    /**
+     * A tile of the image and its halo.
+     */
+    public static class Tile {
+        // the part of the image this tile is for.
+        public final int x, y, width, height;
+        // where the decoded pixels start; they cover the tile and its halo, cut off at the image edges.
+        public final int imageX, imageY;
+        public final BufferedImage image;
+
+        Tile(int x, int y, int width, int height, int imageX, int imageY, BufferedImage image) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.imageX = imageX;
+            this.imageY = imageY;
+            this.image = image;
+        }
+
+        /**
+         * The colour of a pixel in the tile or its halo.
+         * @param px The x coordinate in the whole image
+         * @param py The y coordinate in the whole image
+         * @return
+         */
+        public int getRGB(int px, int py) {
+            return image.getRGB(px - imageX, py - imageY);
+        }
+    }
+
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final int sourceWidth, sourceHeight;
+    private final int width, height;
+    private final int tileSize, halo, subsampling;
+
+    /**
+     * Open an image file for reading in tiles.
+     * @param file The image file
+     * @param tileSize The width and height of each tile, before the halo is added
+     * @param halo How many pixels from the tiles around it each tile comes with
+     * @param subsampling Keep every subsampling'th pixel in each direction, or 1 to keep them all
+     * @throws IOException If the file can't be read or has no image reader
+     */
+    public TiledImageSource(File file, int tileSize, int halo, int subsampling) throws IOException {
+        if (tileSize < 1 || halo < 0 || subsampling < 1)
+            throw new IllegalArgumentException("Bad tile size " + tileSize + ", halo " + halo + " or subsampling " + subsampling);
+        input = ImageIO.createImageInputStream(file);
+        if (input == null)
+            throw new IOException("Can't open " + file);
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("No image reader for " + file);
+        }
+        reader = readers.next();
+        // tiles can be read in any order, so the reader has to be able to seek back.
+        reader.setInput(input, false, true);
+        sourceWidth = reader.getWidth(0);
+        sourceHeight = reader.getHeight(0);
+        this.tileSize = tileSize;
+        this.halo = halo;
+        this.subsampling = subsampling;
+        width = (sourceWidth + subsampling - 1) / subsampling;
+        height = (sourceHeight + subsampling - 1) / subsampling;
+    }
+
+    /**
+     * The width of the image, after subsampling.
+     * @return
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * The height of the image, after subsampling.
+     * @return
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getHalo() {
+        return halo;
+    }
+
+    public int getTilesAcross() {
+        return (width + tileSize - 1) / tileSize;
+    }
+
+    public int getTilesDown() {
+        return (height + tileSize - 1) / tileSize;
+    }
+
+    /**
+     * Decode one tile and its halo.
+     * @param col The tile column, from 0 to getTilesAcross() - 1
+     * @param row The tile row, from 0 to getTilesDown() - 1
+     * @return The tile.
+     * @throws IOException
+     */
+    public Tile readTile(int col, int row) throws IOException {
+        if (col < 0 || col >= getTilesAcross() || row < 0 || row >= getTilesDown())
+            throw new IllegalArgumentException("No tile at " + col + ", " + row);
+        int x = col * tileSize;
+        int y = row * tileSize;
+        int tileWidth = Math.min(tileSize, width - x);
+        int tileHeight = Math.min(tileSize, height - y);
+        int imageX = Math.max(0, x - halo);
+        int imageY = Math.max(0, y - halo);
+        int imageEndX = Math.min(width, x + tileWidth + halo);
+        int imageEndY = Math.min(height, y + tileHeight + halo);
+
+        // the region is in source pixels; subsampling starts at its top left corner.
+        ImageReadParam param = reader.getDefaultReadParam();
+        int regionX = imageX * subsampling;
+        int regionY = imageY * subsampling;
+        param.setSourceRegion(new Rectangle(regionX, regionY,
+                Math.min((imageEndX - imageX) * subsampling, sourceWidth - regionX),
+                Math.min((imageEndY - imageY) * subsampling, sourceHeight - regionY)));
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        BufferedImage image = reader.read(0, param);
+        return new Tile(x, y, tileWidth, tileHeight, imageX, imageY, image);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.dispose();
+        input.close();
+    }
+}
@@ -0,0 +1,91 @@
+
+package polyfromimagecombinedspring;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Stage 1 for ground truth images, worked out one tile at a time. Only one
+ * decoded tile is held at once, and the only thing kept for the whole
+ * image is the mask of edge pixels, so nothing the size of the image
+ * is made other than the mask. A caller that also needs the pixels can
+ * pass in a smaller image to fill with every few pixels of each tile.
+ *
+ * The result is the same as the whole image version in main: a pixel is
+ * an obstacle if its red is below 32, and it is kept if it is an obstacle
+ * with at least one of its 8 neighbours not an obstacle. Pixels on the
+ * border of the image are never kept.
+ */
+public class TiledThreshold {
+
+    private static final int OBSTACLE_RED = 32;
+
+    /**
+     * Find the edge pixels of the obstacles in a ground truth image.
+     * @param source The image, with a halo of at least 1 pixel
+     * @return Whether each pixel is an edge pixel.
+     * @throws IOException If a tile can't be read
+     */
+    public static EdgeMask groundTruthEdges(TiledImageSource source) throws IOException {
+        return groundTruthEdges(source, null, 1);
+    }
+
+    /**
+     * Find the edge pixels of the obstacles in a ground truth image, and
+     * fill a scaled down copy of the image as each tile is read, so a
+     * caller that also needs the pixels doesn't have to decode the image
+     * again. Pixel (x, y) of the copy is pixel (x * scale, y * scale) of
+     * the image.
+     * @param source The image, with a halo of at least 1 pixel
+     * @param preview An image the size of the source divided by scale, rounded up, or null
+     * @param scale How many times smaller the preview is along each side
+     * @return Whether each pixel is an edge pixel.
+     * @throws IOException If a tile can't be read
+     */
+    public static EdgeMask groundTruthEdges(TiledImageSource source, BufferedImage preview, int scale) throws IOException {
+        if (source.getHalo() < 1)
+            throw new IllegalArgumentException("The edge test needs a halo of at least 1 pixel");
+        int width = source.getWidth();
+        int height = source.getHeight();
+        EdgeMask edges = new EdgeMask(width, height);
+        boolean[] mask = edges.getData();
+        for (int row = 0; row < source.getTilesDown(); row++) {
+            for (int col = 0; col < source.getTilesAcross(); col++) {
+                TiledImageSource.Tile tile = source.readTile(col, row);
+                int imageWidth = tile.image.getWidth();
+                int imageHeight = tile.image.getHeight();
+                int[] rgb = tile.image.getRGB(0, 0, imageWidth, imageHeight, null, 0, imageWidth);
+                boolean[] obstacle = new boolean[rgb.length];
+                for (int p = 0; p < rgb.length; p++)
+                    obstacle[p] = ((rgb[p] >> 16) & 0xFF) < OBSTACLE_RED;
+                if (preview != null) {
+                    // the preview pixels whose source pixel is in this tile.
+                    int startPx = (tile.x + scale - 1) / scale, endPx = (tile.x + tile.width + scale - 1) / scale;
+                    int startPy = (tile.y + scale - 1) / scale, endPy = (tile.y + tile.height + scale - 1) / scale;
+                    for (int py = startPy; py < endPy; py++) {
+                        int line = ((py * scale) - tile.imageY) * imageWidth;
+                        for (int px = startPx; px < endPx; px++)
+                            preview.setRGB(px, py, rgb[line + (px * scale) - tile.imageX]);
+                    }
+                }
+
+                int startX = Math.max(1, tile.x);
+                int endX = Math.min(width - 1, tile.x + tile.width);
+                int startY = Math.max(1, tile.y);
+                int endY = Math.min(height - 1, tile.y + tile.height);
+                for (int y = startY; y < endY; y++) {
+                    for (int x = startX; x < endX; x++) {
+                        int p = ((y - tile.imageY) * imageWidth) + (x - tile.imageX);
+                        if (!obstacle[p])
+                            continue;
+                        mask[(y * width) + x] = !(obstacle[p - 1] && obstacle[p + 1] &&
+                                obstacle[p - imageWidth] && obstacle[p + imageWidth] &&
+                                obstacle[p - imageWidth - 1] && obstacle[p - imageWidth + 1] &&
+                                obstacle[p + imageWidth - 1] && obstacle[p + imageWidth + 1]);
+                    }
+                }
+            }
+        }
+        return edges;
+    }
+}
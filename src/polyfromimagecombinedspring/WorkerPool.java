@@ -0,0 +1,73 @@
+
+package polyfromimagecombinedspring;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed number of worker threads that is kept and used again, so the
+ * steps that split their work between threads (the graph build, drawing
+ * the output images, distance matrices) don't start and stop threads of
+ * their own for every image. A Pipeline owns one for the images it runs.
+ *
+ * The threads are daemons and stop after they have been idle for a
+ * while, so a pool that is never closed doesn't keep the JVM running or
+ * hold threads it isn't using. Tasks from many callers can be submitted
+ * at once.
+ */
+public class WorkerPool implements AutoCloseable {
+
+    // how long an idle thread is kept, in seconds.
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final int numThreads;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Make a pool. No threads are started until the first task.
+     * @param numThreads The number of threads
+     */
+    public WorkerPool(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+        executor = new ThreadPoolExecutor(this.numThreads, this.numThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), (task) -> {
+                    Thread thread = new Thread(task, "worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Run a task on one of the threads.
+     * @param task
+     * @return The task's future.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Run a task on one of the threads.
+     * @param task
+     * @return The task's future.
+     */
+    public Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Stop the threads once the tasks already submitted are done.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}